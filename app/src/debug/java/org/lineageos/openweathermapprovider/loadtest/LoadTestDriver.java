@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.loadtest;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lineageos.weather.LineageWeatherManager;
+import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
+
+/**
+ * Fires weather and city lookup requests through {@link LineageWeatherManager}, so they reach
+ * the provider as regular service requests, and measures how the provider copes with them.
+ */
+public class LoadTestDriver {
+
+    private static final String[] CITY_IDS = { "2643743", "6058560", "4517009", "2988507",
+            "3117735", "2950159", "3169070", "2759794", "524901", "1850147" };
+    private static final String[] CITY_NAMES = { "Lon", "Par", "Mad", "Ber", "Rom", "Ams",
+            "Mos", "Tok", "New", "Syd" };
+
+    private final Context mContext;
+    private final int mRequestCount;
+    private final int mConcurrency;
+    private final float mCancelRate;
+    private final Random mRandom = new Random();
+
+    private final long[] mLatencies;
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicInteger mRejected = new AtomicInteger();
+    private final AtomicInteger mCancelled = new AtomicInteger();
+
+    public LoadTestDriver(Context context, int requestCount, int concurrency, float cancelRate) {
+        mContext = context;
+        mRequestCount = requestCount;
+        mConcurrency = concurrency;
+        mCancelRate = cancelRate;
+        mLatencies = new long[requestCount];
+    }
+
+    /**
+     * Runs the load test. This is a blocking call and should never be called from the UI thread
+     * @return The elapsed time in milliseconds
+     */
+    public long run(long timeoutMs) throws InterruptedException {
+        final LineageWeatherManager weatherManager = LineageWeatherManager.getInstance(mContext);
+        final Semaphore inFlight = new Semaphore(mConcurrency);
+        Arrays.fill(mLatencies, -1);
+
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mRequestCount; i++) {
+            inFlight.acquire();
+            final int index = i;
+            final AtomicBoolean done = new AtomicBoolean(false);
+            final long submitted = SystemClock.elapsedRealtime();
+            final int requestId;
+            final int roll = mRandom.nextInt(10);
+            if (roll < 6) {
+                requestId = weatherManager.requestWeatherUpdate(randomLocation(),
+                        new LineageWeatherManager.WeatherUpdateRequestListener() {
+                            @Override
+                            public void onWeatherRequestCompleted(int status, WeatherInfo info) {
+                                onRequestDone(index, status, submitted, done, inFlight);
+                            }
+                        });
+            } else if (roll < 9) {
+                requestId = weatherManager.requestWeatherUpdate(randomWeatherLocation(),
+                        new LineageWeatherManager.WeatherUpdateRequestListener() {
+                            @Override
+                            public void onWeatherRequestCompleted(int status, WeatherInfo info) {
+                                onRequestDone(index, status, submitted, done, inFlight);
+                            }
+                        });
+            } else {
+                requestId = weatherManager.lookupCity(
+                        CITY_NAMES[mRandom.nextInt(CITY_NAMES.length)],
+                        new LineageWeatherManager.LookupCityRequestListener() {
+                            @Override
+                            public void onLookupCityRequestCompleted(int status,
+                                    List<WeatherLocation> locations) {
+                                onRequestDone(index, status, submitted, done, inFlight);
+                            }
+                        });
+            }
+
+            if (requestId < 0) {
+                //The request never made it to the provider
+                if (done.compareAndSet(false, true)) {
+                    mFailed.incrementAndGet();
+                    inFlight.release();
+                }
+            } else if (mRandom.nextFloat() < mCancelRate) {
+                weatherManager.cancelRequest(requestId);
+                if (done.compareAndSet(false, true)) {
+                    mCancelled.incrementAndGet();
+                    inFlight.release();
+                }
+            }
+        }
+        //Wait for the stragglers
+        if (!inFlight.tryAcquire(mConcurrency, timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException("Timed out waiting for the pending requests");
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private void onRequestDone(int index, int status, long submitted, AtomicBoolean done,
+            Semaphore inFlight) {
+        if (!done.compareAndSet(false, true)) return;
+        mLatencies[index] = SystemClock.elapsedRealtime() - submitted;
+        switch (status) {
+            case LineageWeatherManager.RequestStatus.COMPLETED:
+                mCompleted.incrementAndGet();
+                break;
+            case LineageWeatherManager.RequestStatus.SUBMITTED_TOO_SOON:
+            case LineageWeatherManager.RequestStatus.ALREADY_IN_PROGRESS:
+                mRejected.incrementAndGet();
+                break;
+            default:
+                mFailed.incrementAndGet();
+                break;
+        }
+        inFlight.release();
+    }
+
+    private Location randomLocation() {
+        Location location = new Location("loadtest");
+        //Spread the requests so they are not considered to be the same location
+        location.setLatitude(mRandom.nextDouble() * 120d - 60d);
+        location.setLongitude(mRandom.nextDouble() * 360d - 180d);
+        return location;
+    }
+
+    private WeatherLocation randomWeatherLocation() {
+        int city = mRandom.nextInt(CITY_IDS.length);
+        return new WeatherLocation.Builder(CITY_IDS[city], CITY_NAMES[city]).build();
+    }
+
+    /**
+     * @param elapsedMs The value returned by {@link #run(long)}
+     * @param server The stand-in server the provider was pointed to
+     */
+    public String getReport(long elapsedMs, StandInServer server) {
+        long[] latencies = new long[mRequestCount];
+        int measured = 0;
+        for (long latency : mLatencies) {
+            if (latency >= 0) latencies[measured++] = latency;
+        }
+        Arrays.sort(latencies, 0, measured);
+
+        StringBuilder report = new StringBuilder();
+        report.append("requests=").append(mRequestCount)
+                .append(" concurrency=").append(mConcurrency)
+                .append(" elapsed=").append(elapsedMs).append("ms")
+                .append(" throughput=")
+                .append(String.format("%.1f", mRequestCount * 1000f / Math.max(elapsedMs, 1)))
+                .append("req/s\n");
+        report.append("completed=").append(mCompleted.get())
+                .append(" failed=").append(mFailed.get())
+                .append(" rejected=").append(mRejected.get())
+                .append(" cancelled=").append(mCancelled.get()).append('\n');
+        report.append("latency p50=").append(percentile(latencies, measured, 0.50))
+                .append("ms p90=").append(percentile(latencies, measured, 0.90))
+                .append("ms p99=").append(percentile(latencies, measured, 0.99))
+                .append("ms max=").append(measured > 0 ? latencies[measured - 1] : 0)
+                .append("ms\n");
+        report.append("upstream weather=").append(server.getCallCount(StandInServer.PATH_WEATHER))
+                .append(" forecast=").append(server.getCallCount(StandInServer.PATH_FORECAST))
+                .append(" find=").append(server.getCallCount(StandInServer.PATH_FIND))
+                .append(" total=").append(server.getTotalCallCount())
+                .append(" errors=").append(server.getErrorCount())
+                .append(" rateLimited=").append(server.getRateLimitedCount());
+        return report.toString();
+    }
+
+    static long percentile(long[] sorted, int count, double percentile) {
+        if (count == 0) return 0;
+        int index = (int) Math.ceil(percentile * count) - 1;
+        return sorted[Math.max(0, Math.min(index, count - 1))];
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.loadtest;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.lineageos.openweathermapprovider.R;
+
+import java.io.IOException;
+
+import lineageos.weather.LineageWeatherManager;
+
+/**
+ * Entry point of the load test, only available in debug builds. The provider must be the active
+ * weather provider. Usage:
+ *
+ * adb shell am startservice -n org.lineageos.openweathermapprovider/.loadtest.LoadTestService
+ *     [--ei requests 5000] [--ei concurrency 64] [--ef cancel_rate 0.1]
+ *     [--el latency_ms 100] [--el jitter_ms 50] [--ef error_rate 0.01]
+ *     [--ef rate_limit_rate 0.01]
+ *
+ * The report is written to the log with the OpenWeatherMapLoadTest tag.
+ */
+public class LoadTestService extends IntentService {
+
+    private static final String TAG = "OpenWeatherMapLoadTest";
+
+    private static final String API_KEY = "api_key";
+    private static final String BASE_URL = "base_url";
+
+    private static final long TIMEOUT_MS = 10L * 60L * 1000L;
+
+    public LoadTestService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final String activeProvider = LineageWeatherManager.getInstance(this)
+                .getActiveWeatherServiceProviderLabel();
+        if (!TextUtils.equals(activeProvider, getString(R.string.app_name))) {
+            Log.e(TAG, "The provider must be the active weather provider, found "
+                    + activeProvider);
+            return;
+        }
+
+        final StandInServer server = new StandInServer.Builder()
+                .setLatency(intent.getLongExtra("latency_ms", 100),
+                        intent.getLongExtra("jitter_ms", 50))
+                .setErrorRate(intent.getFloatExtra("error_rate", 0f))
+                .setRateLimitRate(intent.getFloatExtra("rate_limit_rate", 0f))
+                .build();
+        final LoadTestDriver driver = new LoadTestDriver(this,
+                intent.getIntExtra("requests", 5000),
+                intent.getIntExtra("concurrency", 64),
+                intent.getFloatExtra("cancel_rate", 0.1f));
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final String apiKey = preferences.getString(API_KEY, null);
+        try {
+            final String baseUrl = server.start(getAssets());
+            Log.i(TAG, "Stand-in server listening on " + baseUrl);
+            SharedPreferences.Editor editor = preferences.edit().putString(BASE_URL, baseUrl);
+            if (TextUtils.isEmpty(apiKey)) {
+                //The stand-in doesn't check the key, but the provider needs one
+                editor.putString(API_KEY, "standin");
+            }
+            editor.commit();
+
+            final long elapsed = driver.run(TIMEOUT_MS);
+            Log.i(TAG, driver.getReport(elapsed, server));
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Load test failed", e);
+        } finally {
+            SharedPreferences.Editor editor = preferences.edit().remove(BASE_URL);
+            if (TextUtils.isEmpty(apiKey)) {
+                editor.remove(API_KEY);
+            }
+            editor.commit();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.loadtest;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import org.lineageos.openweathermapprovider.openweathermap.TrafficRecorder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lineageos.weather.LineageWeatherManager;
+import lineageos.weather.RequestInfo;
+import lineageos.weather.WeatherInfo;
+import lineageos.weather.WeatherLocation;
+
+/**
+ * Replays the requests of a traffic log written by {@link TrafficRecorder} through
+ * {@link LineageWeatherManager}, preserving their timing, and measures how the provider copes
+ * with them. The recorded responses are meant to be served by a {@link StandInServer}.
+ */
+public class ReplayDriver {
+
+    private static class Request {
+        final long time;
+        final int type;
+        final String argument;
+
+        Request(long time, int type, String argument) {
+            this.time = time;
+            this.type = type;
+            this.argument = argument;
+        }
+    }
+
+    private final Context mContext;
+    private final List<Request> mRequests = new ArrayList<>();
+    //Latest successful response recorded for each path
+    private final Map<String, byte[]> mResponses = new HashMap<>();
+    private final List<Long> mUpstreamDurations = new ArrayList<>();
+
+    private long[] mLatencies;
+    private final AtomicInteger mCompleted = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    private final AtomicInteger mRejected = new AtomicInteger();
+
+    public ReplayDriver(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Loads a traffic log, logs must be loaded in chronological order
+     */
+    public void load(File log) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(log))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                try {
+                    if (fields.length == 4 && fields[0].equals(TrafficRecorder.RECORD_REQUEST)) {
+                        mRequests.add(new Request(Long.parseLong(fields[1]),
+                                Integer.parseInt(fields[2]), fields[3]));
+                    } else if (fields.length == 7
+                            && fields[0].equals(TrafficRecorder.RECORD_HTTP)) {
+                        mUpstreamDurations.add(Long.parseLong(fields[4]));
+                        if (!fields[6].equals(TrafficRecorder.NO_BODY)) {
+                            mResponses.put(fields[2], Base64.decode(fields[6], Base64.NO_WRAP));
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    //Truncated record, the log was probably rotated while being written
+                }
+            }
+        }
+    }
+
+    public int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public Map<String, byte[]> getResponses() {
+        return mResponses;
+    }
+
+    /**
+     * @return The median duration of the recorded HTTP calls, 0 if none was recorded
+     */
+    public long getMedianUpstreamDuration() {
+        if (mUpstreamDurations.isEmpty()) return 0;
+        List<Long> durations = new ArrayList<>(mUpstreamDurations);
+        Collections.sort(durations);
+        return durations.get(durations.size() / 2);
+    }
+
+    /**
+     * Replays the requests. This is a blocking call and should never be called from the UI
+     * thread
+     * @param speed 1 to replay in real time, higher values to accelerate the replay
+     * @return The elapsed time in milliseconds
+     */
+    public long run(float speed, long timeoutMs) throws InterruptedException {
+        final LineageWeatherManager weatherManager = LineageWeatherManager.getInstance(mContext);
+        final CountDownLatch pending = new CountDownLatch(mRequests.size());
+        mLatencies = new long[mRequests.size()];
+        Arrays.fill(mLatencies, -1);
+        if (mRequests.isEmpty()) return 0;
+
+        final long firstRequestTime = mRequests.get(0).time;
+        final long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mRequests.size(); i++) {
+            final Request request = mRequests.get(i);
+            final long delay = start + (long) ((request.time - firstRequestTime) / speed)
+                    - SystemClock.elapsedRealtime();
+            if (delay > 0) Thread.sleep(delay);
+
+            final int index = i;
+            final long submitted = SystemClock.elapsedRealtime();
+            final int requestId;
+            switch (request.type) {
+                case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                    requestId = weatherManager.requestWeatherUpdate(
+                            parseLocation(request.argument),
+                            new LineageWeatherManager.WeatherUpdateRequestListener() {
+                                @Override
+                                public void onWeatherRequestCompleted(int status,
+                                        WeatherInfo info) {
+                                    onRequestDone(index, status, submitted, pending);
+                                }
+                            });
+                    break;
+                case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                    requestId = weatherManager.requestWeatherUpdate(
+                            new WeatherLocation.Builder(request.argument, request.argument)
+                                    .build(),
+                            new LineageWeatherManager.WeatherUpdateRequestListener() {
+                                @Override
+                                public void onWeatherRequestCompleted(int status,
+                                        WeatherInfo info) {
+                                    onRequestDone(index, status, submitted, pending);
+                                }
+                            });
+                    break;
+                case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                    requestId = weatherManager.lookupCity(decode(request.argument),
+                            new LineageWeatherManager.LookupCityRequestListener() {
+                                @Override
+                                public void onLookupCityRequestCompleted(int status,
+                                        List<WeatherLocation> locations) {
+                                    onRequestDone(index, status, submitted, pending);
+                                }
+                            });
+                    break;
+                default:
+                    requestId = -1;
+                    break;
+            }
+            if (requestId < 0) {
+                //The request never made it to the provider
+                mFailed.incrementAndGet();
+                pending.countDown();
+            }
+        }
+        if (!pending.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new InterruptedException("Timed out waiting for the pending requests");
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private void onRequestDone(int index, int status, long submitted, CountDownLatch pending) {
+        mLatencies[index] = SystemClock.elapsedRealtime() - submitted;
+        switch (status) {
+            case LineageWeatherManager.RequestStatus.COMPLETED:
+                mCompleted.incrementAndGet();
+                break;
+            case LineageWeatherManager.RequestStatus.SUBMITTED_TOO_SOON:
+            case LineageWeatherManager.RequestStatus.ALREADY_IN_PROGRESS:
+                mRejected.incrementAndGet();
+                break;
+            default:
+                mFailed.incrementAndGet();
+                break;
+        }
+        pending.countDown();
+    }
+
+    private static Location parseLocation(String argument) {
+        final String[] coordinates = argument.split(",");
+        Location location = new Location("replay");
+        location.setLatitude(Double.parseDouble(coordinates[0]));
+        location.setLongitude(Double.parseDouble(coordinates[1]));
+        return location;
+    }
+
+    private static String decode(String argument) {
+        try {
+            return URLDecoder.decode(argument, "UTF-8");
+        } catch (IOException e) {
+            return argument;
+        }
+    }
+
+    /**
+     * @param elapsedMs The value returned by {@link #run(float, long)}
+     * @param server The stand-in server the provider was pointed to
+     */
+    public String getReport(long elapsedMs, StandInServer server) {
+        final int count = mLatencies.length;
+        long[] latencies = new long[count];
+        int measured = 0;
+        for (long latency : mLatencies) {
+            if (latency >= 0) latencies[measured++] = latency;
+        }
+        Arrays.sort(latencies, 0, measured);
+
+        StringBuilder report = new StringBuilder();
+        report.append("replayed=").append(count)
+                .append(" elapsed=").append(elapsedMs).append("ms\n");
+        report.append("completed=").append(mCompleted.get())
+                .append(" failed=").append(mFailed.get())
+                .append(" rejected=").append(mRejected.get()).append('\n');
+        report.append("latency p50=").append(LoadTestDriver.percentile(latencies, measured, 0.50))
+                .append("ms p90=").append(LoadTestDriver.percentile(latencies, measured, 0.90))
+                .append("ms p99=").append(LoadTestDriver.percentile(latencies, measured, 0.99))
+                .append("ms max=").append(measured > 0 ? latencies[measured - 1] : 0)
+                .append("ms\n");
+        report.append("upstream total=").append(server.getTotalCallCount())
+                .append(" errors=").append(server.getErrorCount())
+                .append(" rateLimited=").append(server.getRateLimitedCount());
+        return report.toString();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.loadtest;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.lineageos.openweathermapprovider.R;
+import org.lineageos.openweathermapprovider.openweathermap.TrafficRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import lineageos.weather.LineageWeatherManager;
+
+/**
+ * Replays recorded traffic against a stand-in server serving the recorded responses, only
+ * available in debug builds. The traffic is recorded once the record_traffic preference is set.
+ * The provider must be the active weather provider. Usage:
+ *
+ * adb shell am startservice -n org.lineageos.openweathermapprovider/.loadtest.ReplayService
+ *     [--ef speed 1] [--es log /path/to/traffic.log] [--el latency_ms 100]
+ *
+ * Without a log, the logs recorded by this device are replayed. The stand-in latency defaults
+ * to the median recorded one. The report is written to the log with the
+ * OpenWeatherMapLoadTest tag.
+ */
+public class ReplayService extends IntentService {
+
+    private static final String TAG = "OpenWeatherMapLoadTest";
+
+    private static final String API_KEY = "api_key";
+    private static final String BASE_URL = "base_url";
+    private static final String RECORD_TRAFFIC = "record_traffic";
+
+    private static final long TIMEOUT_MS = 10L * 60L * 1000L;
+
+    public ReplayService() {
+        super(TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        final String activeProvider = LineageWeatherManager.getInstance(this)
+                .getActiveWeatherServiceProviderLabel();
+        if (!TextUtils.equals(activeProvider, getString(R.string.app_name))) {
+            Log.e(TAG, "The provider must be the active weather provider, found "
+                    + activeProvider);
+            return;
+        }
+
+        final ReplayDriver driver = new ReplayDriver(this);
+        try {
+            final String log = intent.getStringExtra("log");
+            if (log != null) {
+                driver.load(new File(log));
+            } else {
+                final File directory = new File(getFilesDir(), TrafficRecorder.LOG_DIRECTORY);
+                final File rotatedLog = new File(directory, TrafficRecorder.ROTATED_LOG_FILE);
+                if (rotatedLog.exists()) driver.load(rotatedLog);
+                driver.load(new File(directory, TrafficRecorder.LOG_FILE));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to load the traffic log", e);
+            return;
+        }
+        Log.i(TAG, "Loaded " + driver.getRequestCount() + " requests");
+
+        final StandInServer.Builder builder = new StandInServer.Builder()
+                .setLatency(intent.getLongExtra("latency_ms",
+                        driver.getMedianUpstreamDuration()), 0);
+        for (Map.Entry<String, byte[]> response : driver.getResponses().entrySet()) {
+            builder.setFixture(response.getKey(), response.getValue());
+        }
+        final StandInServer server = builder.build();
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        final String apiKey = preferences.getString(API_KEY, null);
+        final boolean recordTraffic = preferences.getBoolean(RECORD_TRAFFIC, false);
+        try {
+            final String baseUrl = server.start(getAssets());
+            Log.i(TAG, "Stand-in server listening on " + baseUrl);
+            //Don't record the replayed traffic on top of the log being replayed
+            SharedPreferences.Editor editor = preferences.edit().putString(BASE_URL, baseUrl)
+                    .putBoolean(RECORD_TRAFFIC, false);
+            if (TextUtils.isEmpty(apiKey)) {
+                //The stand-in doesn't check the key, but the provider needs one
+                editor.putString(API_KEY, "standin");
+            }
+            editor.commit();
+
+            final long elapsed = driver.run(intent.getFloatExtra("speed", 1f), TIMEOUT_MS);
+            Log.i(TAG, driver.getReport(elapsed, server));
+        } catch (IOException | InterruptedException e) {
+            Log.e(TAG, "Replay failed", e);
+        } finally {
+            SharedPreferences.Editor editor = preferences.edit().remove(BASE_URL)
+                    .putBoolean(RECORD_TRAFFIC, recordTraffic);
+            if (TextUtils.isEmpty(apiKey)) {
+                editor.remove(API_KEY);
+            }
+            editor.commit();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.loadtest;
+
+import android.content.res.AssetManager;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP server standing in for the OpenWeatherMap end point. It serves the recorded
+ * fixtures from the standin assets folder and can inject latency, server errors and rate
+ * limiting responses. Only the end points used by the provider are supported.
+ */
+public class StandInServer {
+
+    public static final String PATH_WEATHER = "/data/2.5/weather";
+    public static final String PATH_FORECAST = "/data/2.5/forecast";
+    public static final String PATH_FIND = "/data/2.5/find";
+
+    private static final String[] PATHS = { PATH_WEATHER, PATH_FORECAST, PATH_FIND };
+
+    private final Map<String, byte[]> mFixtures = new HashMap<>();
+    private final Map<String, AtomicInteger> mCallCounts = new HashMap<>();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+    private final AtomicInteger mRateLimitedCount = new AtomicInteger();
+    private final Random mRandom = new Random();
+
+    private final long mLatencyMs;
+    private final long mLatencyJitterMs;
+    private final float mErrorRate;
+    private final float mRateLimitRate;
+    private final Map<String, byte[]> mFixtureOverrides;
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutor;
+
+    private StandInServer(Builder builder) {
+        mLatencyMs = builder.mLatencyMs;
+        mLatencyJitterMs = builder.mLatencyJitterMs;
+        mErrorRate = builder.mErrorRate;
+        mRateLimitRate = builder.mRateLimitRate;
+        mFixtureOverrides = builder.mFixtures;
+        for (String path : PATHS) {
+            mCallCounts.put(path, new AtomicInteger());
+        }
+        for (String path : mFixtureOverrides.keySet()) {
+            mCallCounts.put(path, new AtomicInteger());
+        }
+    }
+
+    public static class Builder {
+        private long mLatencyMs;
+        private long mLatencyJitterMs;
+        private float mErrorRate;
+        private float mRateLimitRate;
+        private final Map<String, byte[]> mFixtures = new HashMap<>();
+
+        public Builder setLatency(long latencyMs, long jitterMs) {
+            mLatencyMs = latencyMs;
+            mLatencyJitterMs = jitterMs;
+            return this;
+        }
+
+        /**
+         * @param errorRate Fraction of the requests, between 0 and 1, answered with a 500
+         */
+        public Builder setErrorRate(float errorRate) {
+            mErrorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * @param rateLimitRate Fraction of the requests, between 0 and 1, answered with a 429
+         */
+        public Builder setRateLimitRate(float rateLimitRate) {
+            mRateLimitRate = rateLimitRate;
+            return this;
+        }
+
+        /**
+         * Serves the given body for this path instead of the bundled fixture, paths without a
+         * bundled fixture can be served this way too
+         */
+        public Builder setFixture(String path, byte[] body) {
+            mFixtures.put(path, body);
+            return this;
+        }
+
+        public StandInServer build() {
+            return new StandInServer(this);
+        }
+    }
+
+    /**
+     * Loads the fixtures and starts listening on an ephemeral port of the loopback interface
+     * @return The base URL to be used to reach this server
+     */
+    public String start(AssetManager assets) throws IOException {
+        mFixtures.put(PATH_WEATHER, readAsset(assets, "standin/weather.json"));
+        mFixtures.put(PATH_FORECAST, readAsset(assets, "standin/forecast.json"));
+        mFixtures.put(PATH_FIND, readAsset(assets, "standin/find.json"));
+        mFixtures.putAll(mFixtureOverrides);
+
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public void stop() {
+        try {
+            if (mServerSocket != null) mServerSocket.close();
+        } catch (IOException e) {
+            //we are shutting down anyway
+        }
+        if (mExecutor != null) mExecutor.shutdownNow();
+    }
+
+    public int getCallCount(String path) {
+        return mCallCounts.get(path).get();
+    }
+
+    public int getTotalCallCount() {
+        int total = 0;
+        for (AtomicInteger count : mCallCounts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    public int getRateLimitedCount() {
+        return mRateLimitedCount.get();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    Logging.loge("Stand-in server failed to accept connection " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            //Keep the connection alive until the client closes it
+            while ((requestLine = reader.readLine()) != null) {
+                if (requestLine.isEmpty()) continue;
+                String header;
+                while ((header = reader.readLine()) != null && !header.isEmpty()) {
+                    //Requests have no body, headers are not relevant
+                }
+                handleRequest(requestLine, out);
+            }
+        } catch (IOException e) {
+            //The client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //Nothing to do
+            }
+        }
+    }
+
+    private void handleRequest(String requestLine, OutputStream out) throws IOException {
+        //Request line format: GET /path?query HTTP/1.1
+        String[] parts = requestLine.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) path = path.substring(0, queryStart);
+
+        final long latency = mLatencyMs + (mLatencyJitterMs > 0
+                ? (long) (mRandom.nextDouble() * mLatencyJitterMs) : 0);
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+
+        AtomicInteger callCount = mCallCounts.get(path);
+        byte[] fixture = mFixtures.get(path);
+        if (callCount == null || fixture == null) {
+            writeResponse(out, 404, "Not Found",
+                    "{\"cod\":\"404\",\"message\":\"not found\"}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        callCount.incrementAndGet();
+
+        final float roll = mRandom.nextFloat();
+        if (roll < mRateLimitRate) {
+            mRateLimitedCount.incrementAndGet();
+            writeResponse(out, 429, "Too Many Requests",
+                    "{\"cod\":429,\"message\":\"rate limited\"}".getBytes(StandardCharsets.UTF_8));
+        } else if (roll < mRateLimitRate + mErrorRate) {
+            mErrorCount.incrementAndGet();
+            writeResponse(out, 500, "Internal Server Error",
+                    "{\"cod\":500,\"message\":\"error\"}".getBytes(StandardCharsets.UTF_8));
+        } else {
+            writeResponse(out, 200, "OK", fixture);
+        }
+    }
+
+    private static void writeResponse(OutputStream out, int code, String reason, byte[] body)
+            throws IOException {
+        String headers = "HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Content-Type: application/json; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n";
+        out.write(headers.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+
+    private static byte[] readAsset(AssetManager assets, String name) throws IOException {
+        try (InputStream in = assets.open(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider;
+
+import android.os.AsyncTask;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import lineageos.weather.IRequestInfoListener;
+import lineageos.weatherservice.ServiceRequest;
+
+/**
+ * Bounds the work queued for one type of request. Each caller gets its own queue and the queues
+ * are served round-robin, so a caller flooding the provider only delays its own requests. Once
+ * the queue depth limit is reached, the oldest request of the caller with the most queued
+ * requests is shed. Must only be used from the main thread, except for {@link #dump}.
+ */
+class AdmissionController {
+
+    interface Listener {
+        /**
+         * The request was dropped from the queue and has to be failed
+         */
+        void onRequestShed(ServiceRequest request);
+    }
+
+    private static class Item {
+        final ServiceRequest request;
+        final AsyncTask<Void, ?, ?> task;
+
+        Item(ServiceRequest request, AsyncTask<Void, ?, ?> task) {
+            this.request = request;
+            this.task = task;
+        }
+    }
+
+    //Requests without a listener are all considered to come from the same caller
+    private static final Object UNKNOWN_CALLER = new Object();
+
+    private final String mName;
+    private final int mMaxQueueDepth;
+    private final int mMaxRunning;
+    private final Listener mListener;
+
+    //In round-robin order, a caller is moved to the end once one of its requests is started
+    private final LinkedHashMap<Object, ArrayDeque<Item>> mQueues = new LinkedHashMap<>();
+    private final Set<ServiceRequest> mRunning = new HashSet<>();
+
+    //Only written from the main thread, volatile so dump() can read them from a binder thread
+    private volatile int mQueueDepth;
+    private volatile int mRunningCount;
+    private volatile int mCallerCount;
+    private volatile long mAdmittedCount;
+    private volatile long mShedCount;
+    private volatile int mMaxObservedQueueDepth;
+
+    AdmissionController(String name, int maxQueueDepth, int maxRunning, Listener listener) {
+        mName = name;
+        mMaxQueueDepth = maxQueueDepth;
+        mMaxRunning = maxRunning;
+        mListener = listener;
+    }
+
+    /**
+     * Queues the task processing the request, it is started once its turn comes
+     */
+    void submit(ServiceRequest request, AsyncTask<Void, ?, ?> task) {
+        if (mQueueDepth >= mMaxQueueDepth) shedOne();
+
+        final Object caller = getCaller(request);
+        ArrayDeque<Item> queue = mQueues.get(caller);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            mQueues.put(caller, queue);
+        }
+        queue.add(new Item(request, task));
+        mQueueDepth++;
+        mAdmittedCount++;
+        mMaxObservedQueueDepth = Math.max(mMaxObservedQueueDepth, mQueueDepth);
+        schedule();
+        updateCounts();
+    }
+
+    /**
+     * Must be called once the task of a started request is done, or the request was cancelled
+     */
+    void onFinished(ServiceRequest request) {
+        if (mRunning.remove(request)) {
+            schedule();
+            updateCounts();
+            return;
+        }
+        //Still queued
+        Iterator<ArrayDeque<Item>> queues = mQueues.values().iterator();
+        while (queues.hasNext()) {
+            ArrayDeque<Item> queue = queues.next();
+            Iterator<Item> items = queue.iterator();
+            while (items.hasNext()) {
+                if (items.next().request == request) {
+                    items.remove();
+                    mQueueDepth--;
+                    if (queue.isEmpty()) queues.remove();
+                    updateCounts();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void schedule() {
+        while (mRunning.size() < mMaxRunning && !mQueues.isEmpty()) {
+            final Map.Entry<Object, ArrayDeque<Item>> next = mQueues.entrySet().iterator().next();
+            final Object caller = next.getKey();
+            final ArrayDeque<Item> queue = mQueues.remove(caller);
+            final Item item = queue.poll();
+            mQueueDepth--;
+            if (!queue.isEmpty()) mQueues.put(caller, queue);
+
+            mRunning.add(item.request);
+            item.task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    private void updateCounts() {
+        mRunningCount = mRunning.size();
+        mCallerCount = mQueues.size();
+    }
+
+    private void shedOne() {
+        ArrayDeque<Item> longest = null;
+        Object longestCaller = null;
+        for (Map.Entry<Object, ArrayDeque<Item>> entry : mQueues.entrySet()) {
+            if (longest == null || entry.getValue().size() > longest.size()) {
+                longest = entry.getValue();
+                longestCaller = entry.getKey();
+            }
+        }
+        if (longest == null) return;
+        final Item item = longest.poll();
+        mQueueDepth--;
+        if (longest.isEmpty()) mQueues.remove(longestCaller);
+        mShedCount++;
+        Logging.logd("Queue full, shedding ", mName);
+        mListener.onRequestShed(item.request);
+    }
+
+    private static Object getCaller(ServiceRequest request) {
+        IRequestInfoListener listener = request.getRequestInfo().getRequestListener();
+        return listener != null ? listener.asBinder() : UNKNOWN_CALLER;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  " + mName + " queue: depth " + mQueueDepth + " (max " + mMaxObservedQueueDepth
+                + "/" + mMaxQueueDepth + "), running " + mRunningCount + "/" + mMaxRunning
+                + ", callers " + mCallerCount + ", admitted " + mAdmittedCount
+                + ", shed " + mShedCount);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+/**
+ * Tracks whether the default network can reach the internet. Networks that failed validation,
+ * e.g. behind a captive portal, are considered unusable as requests would only time out.
+ */
+class ConnectivityMonitor {
+
+    interface Listener {
+        /**
+         * Invoked on the handler thread when a usable network becomes available again
+         */
+        void onNetworkRestored();
+    }
+
+    private final ConnectivityManager mConnectivityManager;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private volatile boolean mNetworkUsable = true;
+    private boolean mRegistered;
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback
+            = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            setNetworkUsable(isUsable(capabilities));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            setNetworkUsable(false);
+        }
+    };
+
+    ConnectivityMonitor(Context context, Handler handler, Listener listener) {
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(
+                Context.CONNECTIVITY_SERVICE);
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    void register() {
+        if (mRegistered) return;
+        final Network network = mConnectivityManager.getActiveNetwork();
+        mNetworkUsable = network != null
+                && isUsable(mConnectivityManager.getNetworkCapabilities(network));
+        mConnectivityManager.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+        mRegistered = true;
+    }
+
+    void unregister() {
+        if (!mRegistered) return;
+        mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
+        mRegistered = false;
+        //Without updates, let the requests hit the network rather than failing them
+        mNetworkUsable = true;
+    }
+
+    /**
+     * @return false if we know the requests won't make it to the server
+     */
+    boolean isNetworkUsable() {
+        return mNetworkUsable;
+    }
+
+    private void setNetworkUsable(boolean usable) {
+        final boolean restored = usable && !mNetworkUsable;
+        if (usable != mNetworkUsable) Logging.logd("Network usable: ", usable);
+        mNetworkUsable = usable;
+        if (restored) mListener.onNetworkRestored();
+    }
+
+    private static boolean isUsable(NetworkCapabilities capabilities) {
+        return capabilities != null
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+}
@@ -17,18 +17,34 @@
 package org.lineageos.openweathermapprovider;
 
 import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.location.Location;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Handler;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.preference.PreferenceManager;
 
+import org.lineageos.openweathermapprovider.openweathermap.ApiKeyPool;
 import org.lineageos.openweathermapprovider.openweathermap.OpenWeatherMapService;
+import org.lineageos.openweathermapprovider.utils.FlightRecorder;
 import org.lineageos.openweathermapprovider.utils.Logging;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import lineageos.weather.IRequestInfoListener;
 import lineageos.weather.LineageWeatherManager;
 import lineageos.weather.RequestInfo;
 import lineageos.weather.WeatherInfo;
@@ -38,38 +54,96 @@ import lineageos.weatherservice.ServiceRequestResult;
 import lineageos.weatherservice.WeatherProviderService;
 
 public class OpenWeatherMapProviderService extends WeatherProviderService
-        implements SharedPreferences.OnSharedPreferenceChangeListener {
+        implements SharedPreferences.OnSharedPreferenceChangeListener,
+                ConnectivityMonitor.Listener, ApiKeyPool.Listener, AdmissionController.Listener {
 
     private static final String API_KEY = "api_key";
     private static final String API_KEY_VERIFIED_STATE = "api_key_verified_state";
+    //Followed by the key, state of each key of the pool
+    private static final String API_KEY_VERIFIED_STATE_PREFIX = "api_key_verified_state_";
+    //Not exposed in the settings, list of end points, e.g. regional proxies or a local stand-in
+    private static final String BASE_URL = "base_url";
+    //Not exposed in the settings, bounds of the refresh interval in minutes
+    private static final String REFRESH_INTERVAL_MIN = "refresh_interval_min";
+    private static final String REFRESH_INTERVAL_MAX = "refresh_interval_max";
+    private static final String PAYLOAD_BUDGET_MODE = "payload_budget_mode";
+    private static final String FORECAST_DAYS = "forecast_days";
+    //Not exposed in the settings, answers nearby geo requests from bounding box results
+    private static final String TILE_MODE = "tile_mode";
+    //Not exposed in the settings, records the traffic so it can be replayed in debug builds
+    private static final String RECORD_TRAFFIC = "record_traffic";
+    //Not exposed in the settings, estimates geo requests from the cached results around them.
+    //The radius is in km and the maximum age in minutes
+    private static final String SPATIAL_INTERPOLATION = "spatial_interpolation";
+    private static final String INTERPOLATION_RADIUS_KM = "interpolation_radius_km";
+    private static final String INTERPOLATION_MAX_AGE = "interpolation_max_age";
+    //Not exposed in the settings, derives the current weather from a recent cached forecast.
+    //The maximum age is in minutes
+    private static final String FORECAST_INTERPOLATION = "forecast_interpolation";
+    private static final String FORECAST_INTERPOLATION_MAX_AGE = "forecast_interpolation_max_age";
+    //Not exposed in the settings, compares a fetch strategy with the delivered results on a
+    //fraction of the requests
+    private static final String SHADOW_STRATEGY = "shadow_strategy";
+    private static final String SHADOW_SAMPLE_RATE = "shadow_sample_rate";
+    //Not exposed in the settings, path of a gzipped bulk file to answer city requests from.
+    //The maximum age of its observations is in minutes
+    private static final String SNAPSHOT_PATH = "snapshot_path";
+    private static final String SNAPSHOT_MAX_AGE = "snapshot_max_age";
 
-    private static final int API_KEY_INVALID = 0;
-    private static final int API_KEY_VERIFIED = 2;
+    //Passed to dumpsys to export the flight recorder as a binary trace
+    private static final String DUMP_ARG_FLIGHT_TRACE = "--flight-trace";
+    private static final String FLIGHT_TRACE_FILE = "flight_trace.bin";
 
     private OpenWeatherMapService mOpenWeatherMapService;
 
     private Map<ServiceRequest,WeatherUpdateRequestTask> mWeatherUpdateRequestMap = new HashMap<>();
     private Map<ServiceRequest,LookupCityNameRequestTask> mLookupCityRequestMap = new HashMap<>();
-    //OpenWeatherMap recommends to wait 10 min between requests
-    private final static long REQUEST_THRESHOLD = 1000L * 60L * 10L;
-    private long mLastRequestTimestamp = -REQUEST_THRESHOLD;
+    //Bound the queued work and share it fairly between the callers
+    private static final int MAX_QUEUED_WEATHER_REQUESTS = 32;
+    private static final int MAX_RUNNING_WEATHER_REQUESTS = 2;
+    private static final int MAX_QUEUED_LOOKUP_REQUESTS = 16;
+    private static final int MAX_RUNNING_LOOKUP_REQUESTS = 4;
+    private final AdmissionController mWeatherAdmission = new AdmissionController("weather",
+            MAX_QUEUED_WEATHER_REQUESTS, MAX_RUNNING_WEATHER_REQUESTS, this);
+    private final AdmissionController mLookupAdmission = new AdmissionController("lookup",
+            MAX_QUEUED_LOOKUP_REQUESTS, MAX_RUNNING_LOOKUP_REQUESTS, this);
+    //The more volatile the weather, the sooner we accept a new request for the same location
+    private final RefreshPolicy mRefreshPolicy = new RefreshPolicy();
+    private long mLastRequestTimestamp = -RefreshPolicy.DEFAULT_MIN_INTERVAL;
     private WeatherLocation mLastWeatherLocation;
+    private long mLastWeatherLocationRefreshInterval = RefreshPolicy.DEFAULT_MIN_INTERVAL;
     private Location mLastLocation;
+    private long mLastLocationRefreshInterval = RefreshPolicy.DEFAULT_MIN_INTERVAL;
     //5km of threshold, the weather won't change that much in such short distance
     private static final float LOCATION_DISTANCE_METERS_THRESHOLD = 5f * 1000f;
 
+    private long mCreatedTimestamp;
+
+    //Spread the refreshes deferred while offline so they don't all fire when the network is back
+    private static final long MAX_REFRESH_JITTER_MS = 30L * 1000L;
+    private final Random mRandom = new Random();
+    private final Handler mHandler = new Handler();
+    private ConnectivityMonitor mConnectivityMonitor;
+    //Requests answered from the cache while offline, only accessed from the main thread
+    private final List<RequestInfo> mPendingRefreshes = new ArrayList<>();
+
     @Override
     public void onCreate() {
+        mCreatedTimestamp = SystemClock.elapsedRealtime();
         mOpenWeatherMapService = new OpenWeatherMapService(this);
+        mOpenWeatherMapService.setApiKeyStateListener(this);
+        mConnectivityMonitor = new ConnectivityMonitor(this, mHandler, this);
+        //Don't hold up the binding, the first request will wait for the startup to complete
+        new StartupTask().executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
     @Override
     public void onConnected() {
+        //The preferences are preloaded by the StartupTask, just register for changes here
         final SharedPreferences preferences
                 = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.registerOnSharedPreferenceChangeListener(this);
-        final String mApiId = preferences.getString(API_KEY, null);
-        mOpenWeatherMapService.setApiKey(mApiId);
+        mConnectivityMonitor.register();
     }
 
     @Override
@@ -77,19 +151,26 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
         final SharedPreferences preferences
                 = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.unregisterOnSharedPreferenceChangeListener(this);
+        mConnectivityMonitor.unregister();
     }
 
     @Override
     protected void onRequestSubmitted(ServiceRequest request) {
         RequestInfo requestInfo = request.getRequestInfo();
         int requestType = requestInfo.getRequestType();
-        Logging.logd("Received request type " + requestType);
+        if (Logging.DEBUG) Logging.logd("Received request type " + requestType);
+        mOpenWeatherMapService.recordRequest(requestInfo);
+        final long requestId = FlightRecorder.newRequestId();
+        FlightRecorder.record(requestId, FlightRecorder.EVENT_SUBMIT, requestType, 0);
 
-        if (((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ &&
-                isSameGeoLocation(requestInfo.getLocation(), mLastLocation))
+        if ((requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ &&
+                isSameGeoLocation(requestInfo.getLocation(), mLastLocation)
+                && wasRequestSubmittedTooSoon(mLastLocationRefreshInterval))
                 || (requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ &&
-                isSameWeatherLocation(requestInfo.getWeatherLocation(),
-                        mLastWeatherLocation))) && wasRequestSubmittedTooSoon()) {
+                isSameWeatherLocation(requestInfo.getWeatherLocation(), mLastWeatherLocation)
+                && wasRequestSubmittedTooSoon(mLastWeatherLocationRefreshInterval))) {
+            FlightRecorder.record(requestId, FlightRecorder.EVENT_REJECT,
+                    FlightRecorder.REJECT_TOO_SOON, 0);
             request.reject(LineageWeatherManager.RequestStatus.SUBMITTED_TOO_SOON);
             return;
         }
@@ -97,24 +178,108 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
         switch (requestType) {
             case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
             case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                if (!mConnectivityMonitor.isNetworkUsable()) {
+                    completeFromCache(request, requestId);
+                    break;
+                }
                 synchronized (mWeatherUpdateRequestMap) {
                     WeatherUpdateRequestTask updateTask
-                            = new WeatherUpdateRequestTask(request);
+                            = new WeatherUpdateRequestTask(request, requestId);
                     mWeatherUpdateRequestMap.put(request, updateTask);
                     mLastRequestTimestamp = SystemClock.elapsedRealtime();
-                    updateTask.execute();
+                    mWeatherAdmission.submit(request, updateTask);
                 }
                 break;
             case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
                 synchronized (mLookupCityRequestMap) {
-                    LookupCityNameRequestTask lookupTask = new LookupCityNameRequestTask(request);
+                    abortSupersededLookups(requestInfo);
+                    LookupCityNameRequestTask lookupTask
+                            = new LookupCityNameRequestTask(request, requestId);
                     mLookupCityRequestMap.put(request, lookupTask);
-                    lookupTask.execute();
+                    //Don't queue the lookup behind the weather updates, the user is waiting for it
+                    mLookupAdmission.submit(request, lookupTask);
                 }
                 break;
         }
     }
 
+    /**
+     * The request would only fail after waiting for the network, answer right away with the
+     * latest weather we have for this location and refresh it once we're back online
+     */
+    private void completeFromCache(ServiceRequest request, long requestId) {
+        final RequestInfo requestInfo = request.getRequestInfo();
+        final WeatherInfo weatherInfo = getCachedWeather(requestInfo);
+        if (weatherInfo == null) {
+            Logging.logd("Offline and nothing cached, failing request");
+            FlightRecorder.record(requestId, FlightRecorder.EVENT_CACHE_MISS,
+                    FlightRecorder.CACHE_OFFLINE, 0);
+            FlightRecorder.record(requestId, FlightRecorder.EVENT_REJECT,
+                    FlightRecorder.REJECT_OFFLINE, 0);
+            request.fail();
+            return;
+        }
+        Logging.logd("Offline, delivering cached ", weatherInfo);
+        FlightRecorder.record(requestId, FlightRecorder.EVENT_CACHE_HIT,
+                FlightRecorder.CACHE_OFFLINE, 0);
+        request.complete(new ServiceRequestResult.Builder(weatherInfo).build());
+        for (RequestInfo pendingRefresh : mPendingRefreshes) {
+            if (isSameRequestLocation(pendingRefresh, requestInfo)) return;
+        }
+        mPendingRefreshes.add(requestInfo);
+    }
+
+    private WeatherInfo getCachedWeather(RequestInfo requestInfo) {
+        if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            return mOpenWeatherMapService.getCachedWeather(requestInfo.getLocation());
+        } else {
+            return mOpenWeatherMapService.getCachedWeather(requestInfo.getWeatherLocation());
+        }
+    }
+
+    private boolean isSameRequestLocation(RequestInfo requestInfo, RequestInfo otherRequestInfo) {
+        if (requestInfo.getRequestType() != otherRequestInfo.getRequestType()) return false;
+        if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            return isSameGeoLocation(requestInfo.getLocation(), otherRequestInfo.getLocation());
+        } else {
+            return isSameWeatherLocation(requestInfo.getWeatherLocation(),
+                    otherRequestInfo.getWeatherLocation());
+        }
+    }
+
+    @Override
+    public void onRequestShed(ServiceRequest request) {
+        long requestId = 0;
+        if (request.getRequestInfo().getRequestType() == RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
+            synchronized (mLookupCityRequestMap) {
+                final LookupCityNameRequestTask task = mLookupCityRequestMap.remove(request);
+                if (task != null) requestId = task.mRequestId;
+            }
+        } else {
+            synchronized (mWeatherUpdateRequestMap) {
+                final WeatherUpdateRequestTask task = mWeatherUpdateRequestMap.remove(request);
+                if (task != null) requestId = task.mRequestId;
+            }
+        }
+        FlightRecorder.record(requestId, FlightRecorder.EVENT_REJECT, FlightRecorder.REJECT_SHED,
+                0);
+        request.fail();
+    }
+
+    @Override
+    public void onNetworkRestored() {
+        Logging.logd("Network restored, pending refreshes: ", mPendingRefreshes.size());
+        for (final RequestInfo requestInfo : mPendingRefreshes) {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    new RefreshTask(requestInfo).execute();
+                }
+            }, (long) (mRandom.nextDouble() * MAX_REFRESH_JITTER_MS));
+        }
+        mPendingRefreshes.clear();
+    }
+
     @Override
     protected void onRequestCancelled(ServiceRequest request) {
         switch (request.getRequestInfo().getRequestType()) {
@@ -123,7 +288,10 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
                 synchronized (mWeatherUpdateRequestMap) {
                     WeatherUpdateRequestTask task = mWeatherUpdateRequestMap.remove(request);
                     if (task != null) {
+                        FlightRecorder.record(task.mRequestId, FlightRecorder.EVENT_CANCEL,
+                                request.getRequestInfo().getRequestType(), 0);
                         task.cancel(true);
+                        mWeatherAdmission.onFinished(request);
                     }
                     return;
                 }
@@ -131,12 +299,15 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
                 synchronized (mLookupCityRequestMap) {
                     LookupCityNameRequestTask task = mLookupCityRequestMap.remove(request);
                     if (task != null) {
-                        task.cancel(true);
+                        FlightRecorder.record(task.mRequestId, FlightRecorder.EVENT_CANCEL,
+                                request.getRequestInfo().getRequestType(), 0);
+                        task.abort();
+                        mLookupAdmission.onFinished(request);
                     }
                 }
                 return;
             default:
-                Logging.logw("Received unknown request type "
+                if (Logging.DEBUG) Logging.logw("Received unknown request type "
                         + request.getRequestInfo().getRequestType());
                 break;
         }
@@ -146,10 +317,96 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (key.equals(API_KEY)) {
             Logging.logd("API key has changed");
-            final String mApiKey = sharedPreferences.getString(key, null);
-            mOpenWeatherMapService.setApiKey(mApiKey);
+            mOpenWeatherMapService.setApiKeys(
+                    ApiKeyPool.parseKeys(sharedPreferences.getString(key, null)));
+        } else if (key.equals(BASE_URL)) {
+            Logging.logd("Base URLs have changed");
+            mOpenWeatherMapService.setBaseUrls(sharedPreferences.getString(key, null));
+        } else if (key.equals(REFRESH_INTERVAL_MIN) || key.equals(REFRESH_INTERVAL_MAX)) {
+            updateRefreshIntervalBounds(sharedPreferences);
+        } else if (key.equals(PAYLOAD_BUDGET_MODE) || key.equals(FORECAST_DAYS)) {
+            updatePayloadBudget(sharedPreferences);
+        } else if (key.equals(TILE_MODE)) {
+            mOpenWeatherMapService.setTileMode(sharedPreferences.getBoolean(key, false));
+        } else if (key.equals(SPATIAL_INTERPOLATION) || key.equals(INTERPOLATION_RADIUS_KM)
+                || key.equals(INTERPOLATION_MAX_AGE)) {
+            updateSpatialInterpolation(sharedPreferences);
+        } else if (key.equals(FORECAST_INTERPOLATION)
+                || key.equals(FORECAST_INTERPOLATION_MAX_AGE)) {
+            updateForecastInterpolation(sharedPreferences);
+        } else if (key.equals(SHADOW_STRATEGY) || key.equals(SHADOW_SAMPLE_RATE)) {
+            updateShadowStrategy(sharedPreferences);
+        } else if (key.equals(SNAPSHOT_MAX_AGE)) {
+            updateSnapshotMaxAge(sharedPreferences);
+        } else if (key.equals(SNAPSHOT_PATH)) {
+            ingestSnapshot(sharedPreferences);
+        } else if (key.equals(RECORD_TRAFFIC)) {
+            mOpenWeatherMapService.setTrafficRecording(sharedPreferences.getBoolean(key, false));
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mOpenWeatherMapService.onTrimMemory(level);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        //The locale might have changed
+        mOpenWeatherMapService.onConfigurationChanged();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("OpenWeatherMapProviderService:");
+        mWeatherAdmission.dump(pw);
+        mLookupAdmission.dump(pw);
+        mOpenWeatherMapService.dump(pw);
+        FlightRecorder.dump(pw);
+        if (args != null && Arrays.asList(args).contains(DUMP_ARG_FLIGHT_TRACE)) {
+            final File trace = new File(getFilesDir(), FLIGHT_TRACE_FILE);
+            try (FileOutputStream out = new FileOutputStream(trace)) {
+                FlightRecorder.writeTrace(out);
+                pw.println("  flight trace written to " + trace);
+            } catch (IOException e) {
+                pw.println("  unable to write flight trace: " + e);
+            }
+        }
+    }
+
+    /**
+     * Type-ahead searches submit a lookup per keystroke, only the newest one matters. Fails the
+     * lookups of the same client that are still in flight and aborts their HTTP calls.
+     * Must be called with the lookup request map lock held.
+     */
+    private void abortSupersededLookups(RequestInfo newRequestInfo) {
+        Iterator<Map.Entry<ServiceRequest, LookupCityNameRequestTask>> iterator
+                = mLookupCityRequestMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<ServiceRequest, LookupCityNameRequestTask> entry = iterator.next();
+            if (isSameClient(entry.getKey().getRequestInfo(), newRequestInfo)) {
+                Logging.logd("Lookup superseded, aborting");
+                iterator.remove();
+                entry.getValue().abort();
+                mLookupAdmission.onFinished(entry.getKey());
+                FlightRecorder.record(entry.getValue().mRequestId, FlightRecorder.EVENT_REJECT,
+                        FlightRecorder.REJECT_SUPERSEDED, 0);
+                entry.getKey().fail();
+            }
+        }
+    }
+
+    private boolean isSameClient(RequestInfo requestInfo, RequestInfo otherRequestInfo) {
+        IRequestInfoListener listener = requestInfo.getRequestListener();
+        IRequestInfoListener otherListener = otherRequestInfo.getRequestListener();
+        if (listener == null || otherListener == null) {
+            return listener == otherListener;
         }
+        return listener.asBinder() == otherListener.asBinder();
     }
+
     private boolean isSameWeatherLocation(WeatherLocation newLocation,
             WeatherLocation oldLocation) {
         if (newLocation == null || oldLocation == null) return false;
@@ -163,110 +420,350 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
     private boolean isSameGeoLocation(Location newLocation, Location oldLocation) {
         if (newLocation == null || oldLocation == null) return false;
         float distance = newLocation.distanceTo(oldLocation);
-        Logging.logd("Distance between locations " + distance);
+        if (Logging.DEBUG) Logging.logd("Distance between locations " + distance);
         return (distance < LOCATION_DISTANCE_METERS_THRESHOLD);
     }
 
-    private boolean wasRequestSubmittedTooSoon() {
+    private boolean wasRequestSubmittedTooSoon(long refreshInterval) {
         final long now = SystemClock.elapsedRealtime();
-        Logging.logd("Now " + now + " last request " + mLastRequestTimestamp);
-        return (mLastRequestTimestamp + REQUEST_THRESHOLD > now);
+        if (Logging.DEBUG) {
+            Logging.logd("Now " + now + " last request " + mLastRequestTimestamp
+                    + " refresh interval " + refreshInterval);
+        }
+        return (mLastRequestTimestamp + refreshInterval > now);
+    }
+
+    private void updateRefreshIntervalBounds(SharedPreferences preferences) {
+        mRefreshPolicy.setBounds(
+                getMinutesPreference(preferences, REFRESH_INTERVAL_MIN,
+                        RefreshPolicy.DEFAULT_MIN_INTERVAL),
+                getMinutesPreference(preferences, REFRESH_INTERVAL_MAX,
+                        RefreshPolicy.DEFAULT_MAX_INTERVAL));
+    }
+
+    private void updatePayloadBudget(SharedPreferences preferences) {
+        mOpenWeatherMapService.setPayloadBudgetMode(
+                preferences.getBoolean(PAYLOAD_BUDGET_MODE, false));
+        try {
+            mOpenWeatherMapService.setForecastDays(Integer.parseInt(preferences.getString(
+                    FORECAST_DAYS, String.valueOf(OpenWeatherMapService.DEFAULT_FORECAST_DAYS))));
+        } catch (NumberFormatException e) {
+            Logging.logw("Ignoring invalid value for ", FORECAST_DAYS);
+        }
+    }
+
+    private void updateSpatialInterpolation(SharedPreferences preferences) {
+        float radiusMeters = OpenWeatherMapService.DEFAULT_INTERPOLATION_RADIUS_METERS;
+        try {
+            String radius = preferences.getString(INTERPOLATION_RADIUS_KM, null);
+            if (radius != null) radiusMeters = Float.parseFloat(radius) * 1000f;
+        } catch (NumberFormatException e) {
+            Logging.logw("Ignoring invalid value for ", INTERPOLATION_RADIUS_KM);
+        }
+        mOpenWeatherMapService.setSpatialInterpolation(
+                preferences.getBoolean(SPATIAL_INTERPOLATION, false), radiusMeters,
+                getMinutesPreference(preferences, INTERPOLATION_MAX_AGE,
+                        OpenWeatherMapService.DEFAULT_INTERPOLATION_MAX_AGE_MS));
+    }
+
+    private void updateForecastInterpolation(SharedPreferences preferences) {
+        mOpenWeatherMapService.setForecastInterpolation(
+                preferences.getBoolean(FORECAST_INTERPOLATION, false),
+                getMinutesPreference(preferences, FORECAST_INTERPOLATION_MAX_AGE,
+                        OpenWeatherMapService.DEFAULT_FORECAST_INTERPOLATION_MAX_AGE_MS));
+    }
+
+    private void updateShadowStrategy(SharedPreferences preferences) {
+        float sampleRate = OpenWeatherMapService.DEFAULT_SHADOW_SAMPLE_RATE;
+        try {
+            String rate = preferences.getString(SHADOW_SAMPLE_RATE, null);
+            if (rate != null) sampleRate = Float.parseFloat(rate);
+        } catch (NumberFormatException e) {
+            Logging.logw("Ignoring invalid value for ", SHADOW_SAMPLE_RATE);
+        }
+        mOpenWeatherMapService.setShadowStrategy(
+                preferences.getString(SHADOW_STRATEGY, null), sampleRate);
+    }
+
+    private void updateSnapshotMaxAge(SharedPreferences preferences) {
+        mOpenWeatherMapService.setSnapshotMaxAge(getMinutesPreference(preferences,
+                SNAPSHOT_MAX_AGE, OpenWeatherMapService.DEFAULT_SNAPSHOT_MAX_AGE_MS));
+    }
+
+    private void ingestSnapshot(SharedPreferences preferences) {
+        final String path = preferences.getString(SNAPSHOT_PATH, null);
+        if (path != null && !path.isEmpty()) {
+            new IngestTask(new File(path)).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    private static long getMinutesPreference(SharedPreferences preferences, String key,
+            long defaultValue) {
+        try {
+            String minutes = preferences.getString(key, null);
+            return minutes != null ? Long.parseLong(minutes) * 60L * 1000L : defaultValue;
+        } catch (NumberFormatException e) {
+            Logging.logw("Ignoring invalid value for ", key);
+            return defaultValue;
+        }
+    }
+
+    private class StartupTask extends AsyncTask<Void, Void, Void> {
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            Trace.beginSection("OWM:loadPreferences");
+            try {
+                final SharedPreferences preferences = PreferenceManager
+                        .getDefaultSharedPreferences(OpenWeatherMapProviderService.this);
+                mOpenWeatherMapService.setApiKeys(
+                        ApiKeyPool.parseKeys(preferences.getString(API_KEY, null)));
+                mOpenWeatherMapService.setBaseUrls(preferences.getString(BASE_URL, null));
+                updateRefreshIntervalBounds(preferences);
+                updatePayloadBudget(preferences);
+                mOpenWeatherMapService.setTileMode(preferences.getBoolean(TILE_MODE, false));
+                updateSpatialInterpolation(preferences);
+                updateForecastInterpolation(preferences);
+                updateShadowStrategy(preferences);
+                updateSnapshotMaxAge(preferences);
+                mOpenWeatherMapService.setTrafficRecording(
+                        preferences.getBoolean(RECORD_TRAFFIC, false));
+            } finally {
+                Trace.endSection();
+            }
+            mOpenWeatherMapService.initialize();
+            ingestSnapshot(PreferenceManager
+                    .getDefaultSharedPreferences(OpenWeatherMapProviderService.this));
+            if (Logging.DEBUG) Logging.logd("Service ready "
+                    + (SystemClock.elapsedRealtime() - mCreatedTimestamp) + "ms after bind");
+            return null;
+        }
     }
 
     private class WeatherUpdateRequestTask extends AsyncTask<Void, Void, WeatherInfo> {
 
         final private ServiceRequest mRequest;
+        final private long mRequestId;
+        final private long mSubmittedAt = SystemClock.elapsedRealtime();
 
-        public WeatherUpdateRequestTask(ServiceRequest request) {
+        public WeatherUpdateRequestTask(ServiceRequest request, long requestId) {
             mRequest = request;
+            mRequestId = requestId;
         }
 
         @Override
         protected WeatherInfo doInBackground(Void... params) {
+            FlightRecorder.setCurrentRequest(mRequestId);
+            FlightRecorder.record(FlightRecorder.EVENT_START, 0,
+                    SystemClock.elapsedRealtime() - mSubmittedAt);
+            try {
+                return queryWeather();
+            } finally {
+                FlightRecorder.clearCurrentRequest();
+            }
+        }
+
+        private WeatherInfo queryWeather() {
             RequestInfo requestInfo = mRequest.getRequestInfo();
             int requestType = requestInfo.getRequestType();
             if (requestType == RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ) {
                 try {
                     return mOpenWeatherMapService.queryWeather(requestInfo.getWeatherLocation());
                 } catch (OpenWeatherMapService.InvalidApiKeyException e) {
-                    setApiKeyVerified(API_KEY_INVALID);
+                    setApiKeyVerified(ApiKeyPool.STATE_INVALID);
                     return null;
                 }
             } else if (requestType == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
                 try {
                     return mOpenWeatherMapService.queryWeather(requestInfo.getLocation());
                 } catch (OpenWeatherMapService.InvalidApiKeyException e) {
-                    setApiKeyVerified(API_KEY_INVALID);
+                    setApiKeyVerified(ApiKeyPool.STATE_INVALID);
                     return null;
                 }
             } else {
                 // We don't know how to handle any other type of request
-                Logging.logw("Received unknown request type "+ requestType);
+                if (Logging.DEBUG) Logging.logw("Received unknown request type " + requestType);
                 return null;
             }
         }
 
         @Override
         protected void onPostExecute(WeatherInfo weatherInfo) {
+            Trace.beginSection("OWM:deliverWeather");
+            try {
+                deliver(weatherInfo);
+            } finally {
+                Trace.endSection();
+            }
+        }
+
+        private void deliver(WeatherInfo weatherInfo) {
+            final long duration = SystemClock.elapsedRealtime() - mSubmittedAt;
             if (weatherInfo == null) {
                 Logging.logd("Received null weather info, failing request");
+                FlightRecorder.record(mRequestId, FlightRecorder.EVENT_FAIL, 0, duration);
                 mRequest.fail();
             } else {
-                Logging.logd(weatherInfo.toString());
+                Logging.logd("Delivering ", weatherInfo);
+                FlightRecorder.record(mRequestId, FlightRecorder.EVENT_COMPLETE, 0, duration);
                 ServiceRequestResult result = new ServiceRequestResult.Builder(weatherInfo).build();
                 mRequest.complete(result);
+                //Nothing new can be fetched before upstream publishes again
+                final long refreshInterval = mOpenWeatherMapService.alignRefreshInterval(
+                        mRequest.getRequestInfo(), mRefreshPolicy.getRefreshInterval(weatherInfo));
+                if (mOpenWeatherMapService.isEstimate(weatherInfo)) {
+                    //Fetch the actual weather meanwhile, the next request is answered with it
+                    new RefreshTask(mRequest.getRequestInfo()).execute();
+                }
                 if (mRequest.getRequestInfo().getRequestType()
                         == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
                     mLastLocation = mRequest.getRequestInfo().getLocation();
+                    mLastLocationRefreshInterval = refreshInterval;
                 } else {
                     mLastWeatherLocation = mRequest.getRequestInfo().getWeatherLocation();
+                    mLastWeatherLocationRefreshInterval = refreshInterval;
                 }
-                setApiKeyVerified(API_KEY_VERIFIED);
             }
             synchronized (mWeatherUpdateRequestMap) {
                 mWeatherUpdateRequestMap.remove(mRequest);
             }
+            mWeatherAdmission.onFinished(mRequest);
+        }
+    }
+
+    /**
+     * Refreshes the cached weather of a location served from the cache while offline, or
+     * estimated from the cached results around it
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, Void> {
+
+        final private RequestInfo mRequestInfo;
+
+        public RefreshTask(RequestInfo requestInfo) {
+            mRequestInfo = requestInfo;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            if (!mConnectivityMonitor.isNetworkUsable()) return null;
+            try {
+                if (mRequestInfo.getRequestType()
+                        == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+                    mOpenWeatherMapService.queryWeather(mRequestInfo.getLocation(), false);
+                } else {
+                    mOpenWeatherMapService.queryWeather(mRequestInfo.getWeatherLocation());
+                }
+            } catch (OpenWeatherMapService.InvalidApiKeyException e) {
+                setApiKeyVerified(ApiKeyPool.STATE_INVALID);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Loads a bulk file into the snapshot store, nothing is done if it was loaded already
+     */
+    private class IngestTask extends AsyncTask<Void, Void, Void> {
+
+        final private File mBulkFile;
+
+        public IngestTask(File bulkFile) {
+            mBulkFile = bulkFile;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            Trace.beginSection("OWM:ingestSnapshot");
+            try {
+                final int count = mOpenWeatherMapService.ingestSnapshot(mBulkFile);
+                if (count < 0) {
+                    Logging.logw("Failed to ingest snapshot ", mBulkFile.getPath());
+                } else {
+                    Logging.logd("Snapshot cities: ", count);
+                }
+            } finally {
+                Trace.endSection();
+            }
+            return null;
         }
     }
 
     private class LookupCityNameRequestTask extends AsyncTask<Void, Void, List<WeatherLocation>> {
 
         final private ServiceRequest mRequest;
+        final private CancellationSignal mCancellationSignal = new CancellationSignal();
+        final private long mRequestId;
+        final private long mSubmittedAt = SystemClock.elapsedRealtime();
 
-        public LookupCityNameRequestTask(ServiceRequest request) {
+        public LookupCityNameRequestTask(ServiceRequest request, long requestId) {
             mRequest = request;
+            mRequestId = requestId;
+        }
+
+        public void abort() {
+            mCancellationSignal.cancel();
+            cancel(true);
         }
 
         @Override
         protected List<WeatherLocation> doInBackground(Void... params) {
+            FlightRecorder.setCurrentRequest(mRequestId);
+            FlightRecorder.record(FlightRecorder.EVENT_START, 0,
+                    SystemClock.elapsedRealtime() - mSubmittedAt);
+            try {
+                return lookupCity();
+            } finally {
+                FlightRecorder.clearCurrentRequest();
+            }
+        }
+
+        private List<WeatherLocation> lookupCity() {
             RequestInfo requestInfo = mRequest.getRequestInfo();
             if (requestInfo.getRequestType() != RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ) {
-                Logging.logw("Received unsupported request type " + requestInfo.getRequestType());
+                if (Logging.DEBUG) {
+                    Logging.logw("Received unsupported request type "
+                            + requestInfo.getRequestType());
+                }
                 return null;
             }
             try {
-                return mOpenWeatherMapService.lookupCity(mRequest.getRequestInfo().getCityName());
+                return mOpenWeatherMapService.lookupCity(mRequest.getRequestInfo().getCityName(),
+                        mCancellationSignal);
             } catch (OpenWeatherMapService.InvalidApiKeyException e) {
-                setApiKeyVerified(API_KEY_INVALID);
+                setApiKeyVerified(ApiKeyPool.STATE_INVALID);
                 return null;
             }
         }
 
         @Override
         protected void onPostExecute(List<WeatherLocation> locations) {
+            Trace.beginSection("OWM:deliverLookup");
+            try {
+                deliver(locations);
+            } finally {
+                Trace.endSection();
+            }
+        }
+
+        private void deliver(List<WeatherLocation> locations) {
+            FlightRecorder.record(mRequestId, locations != null ? FlightRecorder.EVENT_COMPLETE
+                    : FlightRecorder.EVENT_FAIL, locations != null ? locations.size() : 0,
+                    SystemClock.elapsedRealtime() - mSubmittedAt);
             if (locations != null) {
-                for (WeatherLocation location : locations) {
-                    Logging.logd(location.toString());
+                if (Logging.DEBUG) {
+                    for (WeatherLocation location : locations) {
+                        Logging.logd(location.toString());
+                    }
                 }
                 ServiceRequestResult request = new ServiceRequestResult.Builder(locations).build();
                 mRequest.complete(request);
-                setApiKeyVerified(API_KEY_VERIFIED);
             } else {
                 mRequest.fail();
             }
             synchronized (mLookupCityRequestMap) {
                 mLookupCityRequestMap.remove(mRequest);
             }
+            mLookupAdmission.onFinished(mRequest);
         }
     }
 
@@ -274,4 +771,11 @@ public class OpenWeatherMapProviderService extends WeatherProviderService
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.edit().putInt(API_KEY_VERIFIED_STATE, state).apply();
     }
+
+    @Override
+    public void onApiKeyStateChanged(String apiKey, int state, int poolState) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
+        sp.edit().putInt(API_KEY_VERIFIED_STATE_PREFIX + apiKey, state)
+                .putInt(API_KEY_VERIFIED_STATE, poolState).apply();
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider;
+
+import java.util.List;
+
+import lineageos.providers.WeatherContract;
+import lineageos.weather.WeatherInfo;
+
+/**
+ * Computes how long a weather result stays fresh based on how volatile the weather is. Calm
+ * weather gets the maximum interval, storms, precipitation, large temperature swings or strong
+ * wind bring it down towards the minimum interval.
+ */
+class RefreshPolicy {
+
+    //OpenWeatherMap recommends to wait 10 min between requests
+    static final long DEFAULT_MIN_INTERVAL = 1000L * 60L * 10L;
+    static final long DEFAULT_MAX_INTERVAL = 1000L * 60L * 60L;
+
+    //Change of the high or low, in deg C, from one day to the next considered fully volatile.
+    //The range within a day is not taken into account, every calm day has one
+    private static final double VOLATILE_TEMPERATURE_CHANGE = 8d;
+    //Wind speed, in km/h, considered fully volatile
+    private static final double VOLATILE_WIND_SPEED_KPH = 50d;
+    private static final double MPH_TO_KPH = 1.609344d;
+    //Number of forecast days taken into account, today included
+    private static final int FORECAST_DAYS = 3;
+
+    private static final float STORM_VOLATILITY = 1f;
+    private static final float PRECIPITATION_VOLATILITY = 0.6f;
+    private static final float CLOUDS_VOLATILITY = 0.2f;
+
+    private long mMinInterval = DEFAULT_MIN_INTERVAL;
+    private long mMaxInterval = DEFAULT_MAX_INTERVAL;
+
+    /**
+     * @param minInterval Never lower than {@link #DEFAULT_MIN_INTERVAL}
+     */
+    synchronized void setBounds(long minInterval, long maxInterval) {
+        mMinInterval = Math.max(DEFAULT_MIN_INTERVAL, minInterval);
+        mMaxInterval = Math.max(mMinInterval, maxInterval);
+    }
+
+    /**
+     * @return The time in milliseconds during which the weather info should be considered fresh
+     */
+    synchronized long getRefreshInterval(WeatherInfo weatherInfo) {
+        final float volatility = getVolatility(weatherInfo);
+        return mMaxInterval - (long) (volatility * (mMaxInterval - mMinInterval));
+    }
+
+    /**
+     * @return A value between 0 (stable) and 1 (volatile)
+     */
+    static float getVolatility(WeatherInfo weatherInfo) {
+        final boolean fahrenheit = weatherInfo.getTemperatureUnit()
+                == WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT;
+        float volatility = getConditionVolatility(weatherInfo.getConditionCode());
+
+        //The day forecasts aggregate the 3h forecast items, a front passing by shows up as a
+        //change of the highs or lows from one day to the next
+        double change = Double.NaN;
+        List<WeatherInfo.DayForecast> forecasts = weatherInfo.getForecasts();
+        if (forecasts != null) {
+            for (int i = 0; i < forecasts.size() && i < FORECAST_DAYS; i++) {
+                WeatherInfo.DayForecast forecast = forecasts.get(i);
+                volatility = Math.max(volatility,
+                        getConditionVolatility(forecast.getConditionCode()));
+                if (i == 0) continue;
+                WeatherInfo.DayForecast previous = forecasts.get(i - 1);
+                change = max(change, Math.abs(forecast.getHigh() - previous.getHigh()));
+                change = max(change, Math.abs(forecast.getLow() - previous.getLow()));
+            }
+        }
+        if (!Double.isNaN(change)) {
+            if (fahrenheit) change /= 1.8d;
+            volatility = Math.max(volatility,
+                    (float) Math.min(1d, change / VOLATILE_TEMPERATURE_CHANGE));
+        }
+
+        double windSpeed = weatherInfo.getWindSpeed();
+        if (!Double.isNaN(windSpeed)) {
+            if (weatherInfo.getWindSpeedUnit()
+                    == WeatherContract.WeatherColumns.WindSpeedUnit.MPH) {
+                windSpeed *= MPH_TO_KPH;
+            }
+            volatility = Math.max(volatility,
+                    (float) Math.min(1d, windSpeed / VOLATILE_WIND_SPEED_KPH));
+        }
+        return volatility;
+    }
+
+    /**
+     * @return The greatest of the two values, ignoring NaN
+     */
+    private static double max(double a, double b) {
+        if (Double.isNaN(a)) return b;
+        if (Double.isNaN(b)) return a;
+        return Math.max(a, b);
+    }
+
+    private static float getConditionVolatility(int conditionCode) {
+        switch (conditionCode) {
+            case WeatherContract.WeatherColumns.WeatherCode.TORNADO:
+            case WeatherContract.WeatherColumns.WeatherCode.TROPICAL_STORM:
+            case WeatherContract.WeatherColumns.WeatherCode.HURRICANE:
+            case WeatherContract.WeatherColumns.WeatherCode.SEVERE_THUNDERSTORMS:
+            case WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS:
+            case WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSTORMS:
+            case WeatherContract.WeatherColumns.WeatherCode.SCATTERED_THUNDERSTORMS:
+            case WeatherContract.WeatherColumns.WeatherCode.THUNDERSHOWER:
+            case WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSHOWERS:
+            case WeatherContract.WeatherColumns.WeatherCode.HAIL:
+            case WeatherContract.WeatherColumns.WeatherCode.BLUSTERY:
+            case WeatherContract.WeatherColumns.WeatherCode.WINDY:
+                return STORM_VOLATILITY;
+            case WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_SNOW:
+            case WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_SLEET:
+            case WeatherContract.WeatherColumns.WeatherCode.MIXED_SNOW_AND_SLEET:
+            case WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_HAIL:
+            case WeatherContract.WeatherColumns.WeatherCode.FREEZING_DRIZZLE:
+            case WeatherContract.WeatherColumns.WeatherCode.DRIZZLE:
+            case WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN:
+            case WeatherContract.WeatherColumns.WeatherCode.SHOWERS:
+            case WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SHOWERS:
+            case WeatherContract.WeatherColumns.WeatherCode.SNOW_FLURRIES:
+            case WeatherContract.WeatherColumns.WeatherCode.LIGHT_SNOW_SHOWERS:
+            case WeatherContract.WeatherColumns.WeatherCode.BLOWING_SNOW:
+            case WeatherContract.WeatherColumns.WeatherCode.SNOW:
+            case WeatherContract.WeatherColumns.WeatherCode.HEAVY_SNOW:
+            case WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SNOW_SHOWERS:
+            case WeatherContract.WeatherColumns.WeatherCode.SNOW_SHOWERS:
+            case WeatherContract.WeatherColumns.WeatherCode.SLEET:
+                return PRECIPITATION_VOLATILITY;
+            case WeatherContract.WeatherColumns.WeatherCode.CLOUDY:
+            case WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_NIGHT:
+            case WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_DAY:
+            case WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_NIGHT:
+            case WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_DAY:
+            case WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY:
+            case WeatherContract.WeatherColumns.WeatherCode.FOGGY:
+            case WeatherContract.WeatherColumns.WeatherCode.HAZE:
+                return CLOUDS_VOLATILITY;
+            default:
+                return 0f;
+        }
+    }
+}
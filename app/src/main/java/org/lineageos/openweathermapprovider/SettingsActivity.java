@@ -29,10 +29,15 @@ import android.view.MenuItem;
 import android.widget.Toast;
 import android.widget.Toolbar;
 
+import org.lineageos.openweathermapprovider.openweathermap.ApiKeyPool;
+
+import java.util.List;
+
 public class SettingsActivity extends Activity {
 
     private static final String API_KEY = "api_key";
     private static final String API_KEY_VERIFIED_STATE = "api_key_verified_state";
+    private static final String API_KEY_VERIFIED_STATE_PREFIX = "api_key_verified_state_";
 
     private static final int API_KEY_PENDING_VERIFICATION = 1;
 
@@ -73,6 +78,21 @@ public class SettingsActivity extends Activity {
             SharedPreferences sharedPreferences
                     = PreferenceManager.getDefaultSharedPreferences(getActivity());
             int apiKeyVerificationState = sharedPreferences.getInt(API_KEY_VERIFIED_STATE, -1);
+            List<String> apiKeys = ApiKeyPool.parseKeys(sharedPreferences.getString(API_KEY, null));
+            if (apiKeys.size() > 1) {
+                //Let the user know how many of the keys are actually in use
+                int verifiedKeys = 0;
+                for (String apiKey : apiKeys) {
+                    if (sharedPreferences.getInt(API_KEY_VERIFIED_STATE_PREFIX + apiKey, -1)
+                            == ApiKeyPool.STATE_VERIFIED) {
+                        verifiedKeys++;
+                    }
+                }
+                mApiKeyPreference.setSummary(getString(
+                        org.lineageos.openweathermapprovider.R.string.api_keys_verified_summary,
+                        verifiedKeys, apiKeys.size()));
+                return;
+            }
             try {
                 //lookup the value state
                 String[] stateEntries
@@ -106,8 +126,15 @@ public class SettingsActivity extends Activity {
                 case API_KEY:
                     SharedPreferences sharedPreferences
                             = PreferenceManager.getDefaultSharedPreferences(getActivity());
-                    sharedPreferences.edit().putInt(API_KEY_VERIFIED_STATE,
-                            API_KEY_PENDING_VERIFICATION).apply();
+                    SharedPreferences.Editor editor = sharedPreferences.edit().putInt(
+                            API_KEY_VERIFIED_STATE, API_KEY_PENDING_VERIFICATION);
+                    //Every key will be verified again
+                    for (String key : sharedPreferences.getAll().keySet()) {
+                        if (key.startsWith(API_KEY_VERIFIED_STATE_PREFIX)) {
+                            editor.remove(key);
+                        }
+                    }
+                    editor.apply();
                     mApiKeyPreference.setSummary(getResources().getStringArray(
                             org.lineageos.openweathermapprovider.R.array.api_key_states_entries)[API_KEY_PENDING_VERIFICATION]);
                     Toast.makeText(getActivity(), org.lineageos.openweathermapprovider.R.string.api_key_changed_verification_warning,
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.cache;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Enforces a single memory budget over all the caches of the process. When the budget is
+ * exceeded or the system asks us to trim our memory, the caches that are the cheapest to refetch
+ * are shed first.
+ */
+public class CacheManager {
+
+    //Share of the per-app memory class the caches may retain
+    private static final int MEMORY_CLASS_BUDGET_DIVISOR = 64;
+
+    //Rough overhead of a map entry and of a String, used by the caches to estimate their size
+    public static final int ENTRY_OVERHEAD_BYTES = 48;
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final List<ManagedCache> mCaches = new ArrayList<>();
+    private final long mBudgetBytes;
+    private long mShedBytes;
+
+    public CacheManager(Context context) {
+        final ActivityManager activityManager
+                = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mBudgetBytes = activityManager.getMemoryClass() * 1024L * 1024L
+                / MEMORY_CLASS_BUDGET_DIVISOR;
+    }
+
+    /**
+     * @return An estimate of the memory retained by the given string, in bytes
+     */
+    public static int estimateBytes(String value) {
+        return value == null ? 0 : STRING_OVERHEAD_BYTES + 2 * value.length();
+    }
+
+    public synchronized void register(ManagedCache cache) {
+        //Keep the caches sorted by refetch cost, so we can shed them in order
+        int i = 0;
+        while (i < mCaches.size() && mCaches.get(i).getRefetchCost() <= cache.getRefetchCost()) {
+            i++;
+        }
+        mCaches.add(i, cache);
+    }
+
+    /**
+     * Called by the caches after they have grown, sheds entries if the budget is exceeded
+     */
+    public void onCacheGrown() {
+        trimTo(mBudgetBytes);
+    }
+
+    /**
+     * @param level The level passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            trimTo(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            trimTo(mBudgetBytes / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimTo(mBudgetBytes / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            //We have no UI worth trimming for
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(mBudgetBytes / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(mBudgetBytes / 2);
+        }
+    }
+
+    private synchronized void trimTo(long targetBytes) {
+        long excess = getRetainedBytes() - targetBytes;
+        if (excess <= 0) return;
+        Logging.logd("Shedding cache bytes ", excess);
+        for (ManagedCache cache : mCaches) {
+            final long shed = cache.shed(excess);
+            mShedBytes += shed;
+            excess -= shed;
+            if (excess <= 0) break;
+        }
+    }
+
+    private long getRetainedBytes() {
+        long retainedBytes = 0;
+        for (ManagedCache cache : mCaches) {
+            retainedBytes += cache.getRetainedBytes();
+        }
+        return retainedBytes;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        pw.println("  caches: " + getRetainedBytes() + " of " + mBudgetBytes + " bytes, "
+                + mShedBytes + " bytes shed");
+        for (ManagedCache cache : mCaches) {
+            pw.println("    " + cache.getName() + ": " + cache.size() + " entries, "
+                    + cache.getRetainedBytes() + " bytes, refetch cost "
+                    + cache.getRefetchCost());
+        }
+    }
+}
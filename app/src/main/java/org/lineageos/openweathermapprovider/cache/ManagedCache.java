@@ -0,0 +1,49 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.cache;
+
+/**
+ * A cache whose memory is accounted by the {@link CacheManager}. Implementations must not hold
+ * their own lock while calling into the manager.
+ */
+public interface ManagedCache {
+
+    /**
+     * Refetch costs, caches with the lowest cost are trimmed first
+     */
+    int REFETCH_COST_FREE = 0;
+    int REFETCH_COST_ONE_CALL = 1;
+    int REFETCH_COST_MULTIPLE_CALLS = 2;
+
+    String getName();
+
+    /**
+     * @return An estimate of the memory retained by the entries, in bytes
+     */
+    long getRetainedBytes();
+
+    int getRefetchCost();
+
+    int size();
+
+    /**
+     * Evicts the least recently used entries until at least the given amount has been released
+     * or the cache is empty
+     * @return The estimated number of bytes released
+     */
+    long shed(long bytes);
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.cache;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link ManagedCache} keeping its entries in access order, so the least recently used ones
+ * are shed first. The entries are guarded by the cache itself, subclasses needing several
+ * operations to be atomic synchronize on it.
+ * @param <V> The type of the entries
+ */
+public abstract class ManagedLruCache<V> implements ManagedCache {
+
+    private final CacheManager mCacheManager;
+    private final LinkedHashMap<String, V> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mRetainedBytes;
+
+    protected ManagedLruCache(CacheManager cacheManager) {
+        mCacheManager = cacheManager;
+        cacheManager.register(this);
+    }
+
+    /**
+     * @return An estimate of the memory retained by the entry, in bytes. Must not change while
+     * the entry is cached.
+     */
+    protected abstract int sizeOf(String key, V entry);
+
+    /**
+     * Marks the entry as the most recently used
+     * @return The entry cached for the key, null if there is none
+     */
+    protected final synchronized V getEntry(String key) {
+        return mEntries.get(key);
+    }
+
+    /**
+     * Caches the entry, then lets the {@link CacheManager} shed entries if needed
+     */
+    protected final void putEntry(String key, V entry) {
+        storeEntry(key, entry);
+        notifyGrown();
+    }
+
+    /**
+     * Caches the entry without telling the {@link CacheManager}, for use while holding the lock
+     * of the cache. {@link #notifyGrown()} must be called once the lock is released.
+     * @return The entry previously cached for the key, null if there was none
+     */
+    protected final synchronized V storeEntry(String key, V entry) {
+        final V previous = mEntries.put(key, entry);
+        mRetainedBytes += sizeOf(key, entry) - (previous != null ? sizeOf(key, previous) : 0);
+        return previous;
+    }
+
+    /**
+     * Must not be called while holding the lock of the cache
+     */
+    protected final void notifyGrown() {
+        mCacheManager.onCacheGrown();
+    }
+
+    /**
+     * @return The entry removed, null if there was none
+     */
+    protected final synchronized V removeEntry(String key) {
+        final V entry = mEntries.remove(key);
+        if (entry != null) mRetainedBytes -= sizeOf(key, entry);
+        return entry;
+    }
+
+    protected final synchronized void clearEntries() {
+        mEntries.clear();
+        mRetainedBytes = 0;
+    }
+
+    /**
+     * Must only be iterated while holding the lock of the cache
+     * @return The entries, least recently used first
+     */
+    protected final Collection<V> getEntries() {
+        return mEntries.values();
+    }
+
+    @Override
+    public final synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    @Override
+    public final synchronized int size() {
+        return mEntries.size();
+    }
+
+    @Override
+    public final synchronized long shed(long bytes) {
+        long shed = 0;
+        Iterator<Map.Entry<String, V>> eldest = mEntries.entrySet().iterator();
+        while (shed < bytes && eldest.hasNext()) {
+            final Map.Entry<String, V> entry = eldest.next();
+            shed += sizeOf(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+        mRetainedBytes -= shed;
+        return shed;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of API keys requests are spread over. Each key keeps track of the calls made in the current
+ * minute, requests go to the healthy key with the most remaining budget. Keys rejected by the
+ * server are ejected from the pool for a while. Free of Android dependencies, so the batch engine
+ * can share it.
+ */
+public class ApiKeyPool {
+
+    //These match the values persisted in the preferences
+    public static final int STATE_INVALID = 0;
+    public static final int STATE_PENDING_VERIFICATION = 1;
+    public static final int STATE_VERIFIED = 2;
+
+    public interface Listener {
+        /**
+         * Invoked from the thread that processed the response when a key is found to be valid or
+         * invalid
+         * @param poolState The state of the pool as a whole, verified if any key is verified
+         */
+        void onApiKeyStateChanged(String apiKey, int state, int poolState);
+    }
+
+    //Free plan allowance
+    public static final int DEFAULT_CALLS_PER_MINUTE = 60;
+    private static final long MINUTE_MS = 60L * 1000L;
+    //New keys might be rejected until they're activated, which can take a while
+    private static final long INVALID_KEY_EJECTION_MS = 60L * MINUTE_MS;
+    private static final long RATE_LIMITED_KEY_EJECTION_MS = MINUTE_MS;
+    private static final long ORIGIN_NANOS = System.nanoTime();
+
+    private static class ApiKey {
+        final String key;
+        int state = STATE_PENDING_VERIFICATION;
+        long windowStart;
+        int windowCalls;
+        //Handed out by acquire() and not answered yet, dropped with the window
+        int reservedCalls;
+        long totalCalls;
+        long rateLimitedCalls;
+        long ejectedUntil;
+
+        ApiKey(String key) {
+            this.key = key;
+        }
+
+        void updateWindow(long now) {
+            if (now - windowStart >= MINUTE_MS) {
+                windowStart = now;
+                windowCalls = 0;
+                reservedCalls = 0;
+            }
+        }
+
+        int getRemainingBudget(long now, int callsPerMinute) {
+            updateWindow(now);
+            return callsPerMinute - windowCalls - reservedCalls;
+        }
+    }
+
+    private final List<ApiKey> mKeys = new ArrayList<>();
+    private final int mCallsPerMinute;
+    private Listener mListener;
+
+    public ApiKeyPool() {
+        this(DEFAULT_CALLS_PER_MINUTE);
+    }
+
+    /**
+     * @param callsPerMinute The allowance of each key
+     */
+    public ApiKeyPool(int callsPerMinute) {
+        mCallsPerMinute = callsPerMinute;
+    }
+
+    //Monotonic, unlike the wall clock, and never negative unlike System.nanoTime() itself
+    private static long now() {
+        return (System.nanoTime() - ORIGIN_NANOS) / 1000000L;
+    }
+
+    /**
+     * @return The keys found in the preference value, separated by commas or white spaces
+     */
+    public static List<String> parseKeys(String value) {
+        List<String> keys = new ArrayList<>();
+        if (value == null) return keys;
+        for (String key : value.split("[,\\s]+")) {
+            if (!key.isEmpty() && !keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * The keys already in the pool keep their state and accounting. Their state is reported to
+     * the listener again, since the persisted states are cleared whenever the keys are edited.
+     */
+    public synchronized void setKeys(List<String> keys) {
+        final List<ApiKey> apiKeys = new ArrayList<>();
+        final List<ApiKey> keptKeys = new ArrayList<>();
+        for (String key : keys) {
+            final ApiKey apiKey = find(key);
+            if (apiKey != null) {
+                keptKeys.add(apiKey);
+                apiKeys.add(apiKey);
+            } else {
+                apiKeys.add(new ApiKey(key));
+            }
+        }
+        mKeys.clear();
+        mKeys.addAll(apiKeys);
+        if (mListener == null) return;
+        for (ApiKey apiKey : keptKeys) {
+            mListener.onApiKeyStateChanged(apiKey.key, apiKey.state, getPoolState());
+        }
+    }
+
+    /**
+     * Reserves a call on the key returned, so concurrent callers are spread over the keys. The
+     * key might have no budget left, when every key is out of budget.
+     * @return The key to use for the next request, null if all the keys have been ejected
+     */
+    public synchronized String acquire() {
+        return acquire(Integer.MIN_VALUE);
+    }
+
+    /**
+     * Same as {@link #acquire()}, but only hands out keys with budget left
+     * @return The key to use for the next request, null if no key can be used right now, see
+     * {@link #getRetryDelay()}
+     */
+    public synchronized String acquireWithinBudget() {
+        return acquire(0);
+    }
+
+    private String acquire(int minBudget) {
+        final long now = now();
+        ApiKey best = null;
+        int bestBudget = minBudget;
+        for (ApiKey apiKey : mKeys) {
+            if (apiKey.ejectedUntil > now) continue;
+            final int budget = apiKey.getRemainingBudget(now, mCallsPerMinute);
+            if (budget > bestBudget) {
+                best = apiKey;
+                bestBudget = budget;
+            }
+        }
+        if (best == null) return null;
+        best.reservedCalls++;
+        return best.key;
+    }
+
+    /**
+     * @return How long until a key is back in the pool or gets a new budget, in ms
+     */
+    public synchronized long getRetryDelay() {
+        final long now = now();
+        long delay = MINUTE_MS;
+        for (ApiKey apiKey : mKeys) {
+            if (apiKey.state == STATE_INVALID) continue;
+            delay = Math.min(delay, apiKey.ejectedUntil > now ? apiKey.ejectedUntil - now
+                    : apiKey.windowStart + MINUTE_MS - now);
+        }
+        return Math.max(0L, delay);
+    }
+
+    /**
+     * @return true if at least one key has not been rejected as invalid
+     */
+    public synchronized boolean hasValidKeys() {
+        for (ApiKey apiKey : mKeys) {
+            if (apiKey.state != STATE_INVALID) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Accounts a call made with this key
+     */
+    public synchronized void onResponse(String key, int code) {
+        final ApiKey apiKey = find(key);
+        if (apiKey == null) return;
+        final long now = now();
+        apiKey.updateWindow(now);
+        if (apiKey.reservedCalls > 0) apiKey.reservedCalls--;
+        apiKey.windowCalls++;
+        apiKey.totalCalls++;
+        if (code == 429) {
+            apiKey.rateLimitedCalls++;
+            apiKey.ejectedUntil = now + RATE_LIMITED_KEY_EJECTION_MS;
+        }
+    }
+
+    public synchronized void onVerified(String key) {
+        setState(key, STATE_VERIFIED);
+    }
+
+    public synchronized void onInvalid(String key) {
+        final ApiKey apiKey = find(key);
+        if (apiKey == null) return;
+        apiKey.ejectedUntil = now() + INVALID_KEY_EJECTION_MS;
+        setState(key, STATE_INVALID);
+    }
+
+    private void setState(String key, int state) {
+        final ApiKey apiKey = find(key);
+        if (apiKey == null || apiKey.state == state) return;
+        apiKey.state = state;
+        if (mListener != null) {
+            mListener.onApiKeyStateChanged(key, state, getPoolState());
+        }
+    }
+
+    private int getPoolState() {
+        int poolState = STATE_INVALID;
+        for (ApiKey apiKey : mKeys) {
+            if (apiKey.state == STATE_VERIFIED) return STATE_VERIFIED;
+            if (apiKey.state == STATE_PENDING_VERIFICATION) {
+                poolState = STATE_PENDING_VERIFICATION;
+            }
+        }
+        return poolState;
+    }
+
+    private ApiKey find(String key) {
+        for (ApiKey apiKey : mKeys) {
+            if (apiKey.key.equals(key)) return apiKey;
+        }
+        return null;
+    }
+
+    private static String mask(String key) {
+        return key.length() > 4 ? key.substring(0, 4) + "..." : key;
+    }
+
+    public synchronized void dump(PrintWriter pw) {
+        final long now = now();
+        for (ApiKey apiKey : mKeys) {
+            pw.println("  key " + mask(apiKey.key) + ": state " + apiKey.state
+                    + ", calls " + apiKey.totalCalls
+                    + ", rate limited " + apiKey.rateLimitedCalls
+                    + ", budget " + apiKey.getRemainingBudget(now, mCallsPerMinute)
+                    + (apiKey.ejectedUntil > now
+                            ? ", ejected for " + (apiKey.ejectedUntil - now) + "ms" : ""));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class BoxCityResponse implements Serializable {
+
+    //Each item has the same layout as the current weather of a single city
+    @SerializedName("list")
+    private List<CurrentWeatherResponse> cityList;
+
+    public BoxCityResponse() {}
+
+    public List<CurrentWeatherResponse> getCityList() {
+        if (cityList == null) {
+            //return an empty list to prevent NPE
+            return new ArrayList<>();
+        } else {
+            return cityList;
+        }
+    }
+}
@@ -26,14 +26,28 @@ import lineageos.providers.WeatherContract;
 public class CurrentWeatherResponse implements Serializable {
     @SerializedName("cod")
     private int code;
+    @SerializedName("id")
+    private String cityId;
     @SerializedName("name")
     private String cityName;
+    @SerializedName("dt")
+    private long observationTime;
+    private Coord coord;
     private List<Weather> weather;
     private Wind wind;
     private Main main;
 
     public CurrentWeatherResponse() {}
 
+    static class Coord {
+        public Coord() {}
+        //The bounding box end point capitalizes these
+        @SerializedName(value = "lat", alternate = "Lat")
+        private double lat = Double.NaN;
+        @SerializedName(value = "lon", alternate = "Lon")
+        private double lon = Double.NaN;
+    }
+
     static class Weather {
         public Weather() {}
         private int id;
@@ -57,36 +71,55 @@ public class CurrentWeatherResponse implements Serializable {
 
     }
 
+    public String getCityId() {
+        return cityId;
+    }
+
     public String getCityName() {
         return cityName;
     }
 
+    public double getLatitude() {
+        return coord != null ? coord.lat : Double.NaN;
+    }
+
+    public double getLongitude() {
+        return coord != null ? coord.lon : Double.NaN;
+    }
+
+    /**
+     * @return The time of the observation in seconds since the epoch, 0 if unknown
+     */
+    public long getObservationTime() {
+        return observationTime;
+    }
+
     public int getInternalCode() {
         return code;
     }
 
     public double getTemperature() {
-        return main.temp;
+        return main != null ? main.temp : Double.NaN;
     }
 
     public double getHumidity() {
-        return main.humidity;
+        return main != null ? main.humidity : Double.NaN;
     }
 
     public double getTodaysMaxTemp() {
-        return main.maxTemp;
+        return main != null ? main.maxTemp : Double.NaN;
     }
 
     public double getTodaysMinTemp() {
-        return main.minTemp;
+        return main != null ? main.minTemp : Double.NaN;
     }
 
     public double getWindDirection() {
-        return wind.deg;
+        return wind != null ? wind.deg : Double.NaN;
     }
 
     public double getWindSpeed() {
-        return wind.speed;
+        return wind != null ? wind.speed : Double.NaN;
     }
 
     public int getConditionCode() {
@@ -0,0 +1,85 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.os.Debug;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Digests the response bodies of the calls made for a location, see
+ * {@link ResponseDigestCache#setCurrentKey(String)}, and hands out the body parsed last time
+ * instead of parsing it again when the digest didn't change.
+ */
+class DigestConverterFactory extends Converter.Factory {
+
+    private final Converter.Factory mDelegate;
+    private final ResponseDigestCache mDigests;
+
+    DigestConverterFactory(Converter.Factory delegate, ResponseDigestCache digests) {
+        mDelegate = delegate;
+        mDigests = digests;
+    }
+
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations,
+            Retrofit retrofit) {
+        final Converter<ResponseBody, ?> converter
+                = mDelegate.responseBodyConverter(type, annotations, retrofit);
+        if (converter == null) return null;
+
+        //The body type tells the end points apart
+        final String endpoint = type.toString();
+        return new Converter<ResponseBody, Object>() {
+            @Override
+            public Object convert(ResponseBody value) throws IOException {
+                final String key = mDigests.getCurrentKey();
+                if (key == null) return converter.convert(value);
+
+                final byte[] bytes = value.bytes();
+                final byte[] digest = ResponseDigestCache.digest(bytes);
+                final String bodyKey = key + "|" + endpoint;
+                final Object cached = digest != null ? mDigests.getBody(bodyKey, digest) : null;
+                if (cached != null) return cached;
+
+                final long start = Debug.threadCpuTimeNanos();
+                final Object body = converter.convert(
+                        ResponseBody.create(value.contentType(), bytes));
+                if (body != null && digest != null) {
+                    mDigests.putBody(bodyKey, digest, body, bytes.length,
+                            Math.max(0L, Debug.threadCpuTimeNanos() - start));
+                }
+                return body;
+            }
+        };
+    }
+
+    @Override
+    public Converter<?, RequestBody> requestBodyConverter(Type type,
+            Annotation[] parameterAnnotations, Annotation[] methodAnnotations,
+            Retrofit retrofit) {
+        return mDelegate.requestBodyConverter(type, parameterAnnotations, methodAnnotations,
+                retrofit);
+    }
+}
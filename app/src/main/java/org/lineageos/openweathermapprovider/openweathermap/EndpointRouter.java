@@ -0,0 +1,172 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.os.SystemClock;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Sends each request to the OpenWeatherMap compatible end point with the best score, failing
+ * over to the next best one on connection errors, and on timeouts and server errors when the
+ * request can safely be sent again. The score adds a penalty for the error rate to the moving
+ * average of the round trip time, a small share of the requests goes to another end point so
+ * the scores of the others stay current.
+ */
+class EndpointRouter implements Interceptor {
+
+    //Weight of the latest sample in the moving averages
+    private static final double SMOOTHING_FACTOR = 0.2d;
+    //Added to the round trip time of an end point failing every request, a failing end point
+    //ranks behind a slow one however fast it fails
+    private static final double ERROR_PENALTY_MS = 10d * 1000d;
+    private static final double EXPLORATION_RATE = 0.05d;
+
+    private static class Endpoint {
+        final HttpUrl url;
+        //Unknown until the first response, so new end points get probed right away
+        double rttMs = 0d;
+        double errorRate = 0d;
+        long requests;
+        long failures;
+
+        Endpoint(HttpUrl url) {
+            this.url = url;
+        }
+
+        double getScore() {
+            return rttMs + ERROR_PENALTY_MS * errorRate;
+        }
+    }
+
+    private final List<Endpoint> mEndpoints = new ArrayList<>();
+    private final Random mRandom = new Random();
+
+    EndpointRouter(HttpUrl defaultEndpoint) {
+        mEndpoints.add(new Endpoint(defaultEndpoint));
+    }
+
+    /**
+     * @param endpoints The end points to route the requests to, must not be empty
+     */
+    synchronized void setEndpoints(List<HttpUrl> endpoints) {
+        mEndpoints.clear();
+        for (HttpUrl url : endpoints) {
+            mEndpoints.add(new Endpoint(url));
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final List<Endpoint> endpoints = getEndpointsByPreference();
+        //The request might have been processed if it timed out or failed on the server side
+        final boolean idempotent = isIdempotent(request);
+        IOException lastException = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            final Endpoint endpoint = endpoints.get(i);
+            final boolean last = i == endpoints.size() - 1;
+            final long start = SystemClock.elapsedRealtime();
+            final Response response;
+            try {
+                response = chain.proceed(request.newBuilder()
+                        .url(rebase(request.url(), endpoint.url)).build());
+            } catch (ConnectException | NoRouteToHostException | UnknownHostException e) {
+                if (Logging.DEBUG) Logging.logd("Failing over from " + endpoint.url + ": " + e);
+                onResponse(endpoint, SystemClock.elapsedRealtime() - start, true);
+                lastException = e;
+                continue;
+            } catch (SocketTimeoutException e) {
+                onResponse(endpoint, SystemClock.elapsedRealtime() - start, true);
+                if (!idempotent) throw e;
+                if (Logging.DEBUG) Logging.logd("Failing over from " + endpoint.url + ": " + e);
+                lastException = e;
+                continue;
+            }
+            final boolean failed = response.code() >= 500;
+            onResponse(endpoint, SystemClock.elapsedRealtime() - start, failed);
+            if (!failed || !idempotent || last) return response;
+            if (Logging.DEBUG) Logging.logd("Failing over from " + endpoint.url + ": "
+                    + response.code());
+            response.body().close();
+        }
+        throw lastException;
+    }
+
+    private static boolean isIdempotent(Request request) {
+        return "GET".equals(request.method()) || "HEAD".equals(request.method());
+    }
+
+    /**
+     * @return The URL of the request on the end point, below the path of the end point
+     */
+    private static HttpUrl rebase(HttpUrl url, HttpUrl endpoint) {
+        String prefix = endpoint.encodedPath();
+        if (prefix.endsWith("/")) prefix = prefix.substring(0, prefix.length() - 1);
+        return endpoint.newBuilder()
+                .encodedPath(prefix + url.encodedPath())
+                .encodedQuery(url.encodedQuery())
+                .build();
+    }
+
+    private synchronized List<Endpoint> getEndpointsByPreference() {
+        List<Endpoint> endpoints = new ArrayList<>(mEndpoints.size());
+        for (Endpoint endpoint : mEndpoints) {
+            int i = 0;
+            while (i < endpoints.size() && endpoints.get(i).getScore() <= endpoint.getScore()) {
+                i++;
+            }
+            endpoints.add(i, endpoint);
+        }
+        if (endpoints.size() > 1 && mRandom.nextDouble() < EXPLORATION_RATE) {
+            endpoints.add(0, endpoints.remove(1 + mRandom.nextInt(endpoints.size() - 1)));
+        }
+        return endpoints;
+    }
+
+    private synchronized void onResponse(Endpoint endpoint, long rttMs, boolean failed) {
+        endpoint.requests++;
+        if (failed) endpoint.failures++;
+        endpoint.rttMs = endpoint.requests == 1 ? rttMs
+                : endpoint.rttMs + SMOOTHING_FACTOR * (rttMs - endpoint.rttMs);
+        endpoint.errorRate += SMOOTHING_FACTOR * ((failed ? 1d : 0d) - endpoint.errorRate);
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        for (Endpoint endpoint : mEndpoints) {
+            pw.println("  " + endpoint.url + ": " + endpoint.requests + " requests, "
+                    + endpoint.failures + " failures, rtt " + Math.round(endpoint.rttMs)
+                    + "ms, error rate " + String.format("%.2f", endpoint.errorRate)
+                    + ", score " + Math.round(endpoint.getScore()));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.os.SystemClock;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+import java.util.List;
+
+/**
+ * Latest 3h forecast fetched for each location, keyed like the {@link WeatherCache}, so the
+ * current weather can be derived from it without calling the current weather end point.
+ */
+class ForecastCache extends ManagedLruCache<ForecastCache.Entry> {
+
+    //Rough size of a 3h forecast item
+    private static final int ITEM_BYTES = 200;
+
+    static class Entry {
+        final long fetchedAt = SystemClock.elapsedRealtime();
+        final ForecastResponse forecastResponse;
+        final int bytes;
+
+        Entry(String key, ForecastResponse forecastResponse) {
+            this.forecastResponse = forecastResponse;
+            final List<ForecastResponse.DayForecast> items = forecastResponse.getForecastList();
+            this.bytes = CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                    + CacheManager.estimateBytes(forecastResponse.getCityName())
+                    + (items != null ? items.size() * ITEM_BYTES : 0);
+        }
+    }
+
+    ForecastCache(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    /**
+     * @param maxAgeMs Maximum age of the forecast
+     * @return The forecast fetched for this key, null if there is none or it is too old
+     */
+    ForecastResponse get(String key, long maxAgeMs) {
+        final Entry entry = getEntry(key);
+        if (entry == null || SystemClock.elapsedRealtime() - entry.fetchedAt > maxAgeMs) {
+            return null;
+        }
+        return entry.forecastResponse;
+    }
+
+    void put(String key, ForecastResponse forecastResponse) {
+        putEntry(key, new Entry(key, forecastResponse));
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        return entry.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "forecasts";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        return REFETCH_COST_ONE_CALL;
+    }
+}
@@ -29,15 +29,29 @@ public class ForecastResponse implements Serializable {
 
     @SerializedName("list")
     private List<DayForecast> forecastList;
+    private City city;
 
     public ForecastResponse() {}
 
+    static class City {
+        public City() {}
+        private String name;
+        private Coord coord;
+
+        static class Coord {
+            public Coord() {}
+            private double lat = Double.NaN;
+            private double lon = Double.NaN;
+        }
+    }
+
     static class DayForecast {
 
         @SerializedName("dt")
         private long timestamp;
         private Main main;
         private List<Weather> weather;
+        private Wind wind;
 
         public DayForecast() {}
 
@@ -48,6 +62,13 @@ public class ForecastResponse implements Serializable {
             private double minTemp = Double.NaN;
             @SerializedName("temp_max")
             private double maxTemp = Double.NaN;
+            private double humidity = Double.NaN;
+        }
+
+        static class Wind {
+            public Wind() {}
+            private double speed = Double.NaN;
+            private double deg = Double.NaN;
         }
 
         static class Weather {
@@ -82,11 +103,39 @@ public class ForecastResponse implements Serializable {
             return main.maxTemp;
         }
 
+        public double getTemperature() {
+            return main.temp;
+        }
+
+        public double getHumidity() {
+            return main.humidity;
+        }
+
+        public double getWindSpeed() {
+            return wind != null ? wind.speed : Double.NaN;
+        }
+
+        public double getWindDirection() {
+            return wind != null ? wind.deg : Double.NaN;
+        }
+
         public long getTimestamp() {
             return timestamp;
         }
     }
 
+    public String getCityName() {
+        return city != null ? city.name : null;
+    }
+
+    public double getLatitude() {
+        return city != null && city.coord != null ? city.coord.lat : Double.NaN;
+    }
+
+    public double getLongitude() {
+        return city != null && city.coord != null ? city.coord.lon : Double.NaN;
+    }
+
     public List<DayForecast> getForecastList() {
         if (forecastList == null) {
             //return an empty list to prevent NPE
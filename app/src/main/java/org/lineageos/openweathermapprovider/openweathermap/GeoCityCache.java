@@ -0,0 +1,195 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent map of lat/lon cells to the city ID OpenWeatherMap resolved them to, so geo
+ * requests can be served through the city ID end points once a cell is known. Shedding only
+ * drops cells from memory, they are read back from the preferences when needed again.
+ */
+class GeoCityCache implements ManagedCache {
+
+    private static final String PREFERENCES_NAME = "geo_city_cache";
+
+    //~5.5km at the equator, in line with the distance we consider to be the same location
+    private static final double CELL_SIZE_DEGREES = 0.05d;
+    //If the resolved city is further than this, the coordinates are a better match
+    private static final float MAX_CITY_DISTANCE_METERS = 25f * 1000f;
+    //Cap of the persisted cells
+    private static final int MAX_ENTRIES = 512;
+
+    private final Context mContext;
+    private final CacheManager mCacheManager;
+    private SharedPreferences mPreferences;
+    private final LinkedHashMap<String, String> mCells = new LinkedHashMap<>(16, 0.75f, true);
+    private long mRetainedBytes;
+    private int mPersistedCount;
+
+    GeoCityCache(Context context, CacheManager cacheManager) {
+        mContext = context;
+        mCacheManager = cacheManager;
+        cacheManager.register(this);
+    }
+
+    /**
+     * Loads the persisted cells. This is a blocking call and should never be called from the UI
+     * thread. Other methods will load the cells on demand.
+     */
+    void load() {
+        synchronized (this) {
+            if (mPreferences != null) return;
+            mPreferences = mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+            for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+                if (entry.getValue() instanceof String) {
+                    mCells.put(entry.getKey(), (String) entry.getValue());
+                    mRetainedBytes += getEntryBytes(entry.getKey(), (String) entry.getValue());
+                    mPersistedCount++;
+                }
+            }
+        }
+        mCacheManager.onCacheGrown();
+    }
+
+    /**
+     * @return The city ID the cell containing this location resolves to, null if unknown
+     */
+    String getCityId(Location location) {
+        load();
+        final String key = getCellKey(location.getLatitude(), location.getLongitude());
+        String cityId;
+        synchronized (this) {
+            cityId = mCells.get(key);
+            if (cityId != null) return cityId;
+            //The preferences are held in memory once loaded, this doesn't hit the disk
+            cityId = mPreferences.getString(key, null);
+            if (cityId == null) return null;
+            mCells.put(key, cityId);
+            mRetainedBytes += getEntryBytes(key, cityId);
+        }
+        mCacheManager.onCacheGrown();
+        return cityId;
+    }
+
+    /**
+     * Records the city OpenWeatherMap resolved the given location to
+     */
+    void put(Location location, String cityId, double cityLatitude, double cityLongitude) {
+        if (cityId == null || cityId.isEmpty() || Double.isNaN(cityLatitude)
+                || Double.isNaN(cityLongitude)) {
+            return;
+        }
+        float[] distance = new float[1];
+        Location.distanceBetween(location.getLatitude(), location.getLongitude(),
+                cityLatitude, cityLongitude, distance);
+        if (distance[0] > MAX_CITY_DISTANCE_METERS) return;
+
+        load();
+        final String key = getCellKey(location.getLatitude(), location.getLongitude());
+        synchronized (this) {
+            final String previous = mCells.put(key, cityId);
+            if (cityId.equals(previous)) return;
+            mRetainedBytes += getEntryBytes(key, cityId)
+                    - (previous != null ? getEntryBytes(key, previous) : 0);
+            SharedPreferences.Editor editor = mPreferences.edit();
+            if (!mPreferences.contains(key)) {
+                mPersistedCount++;
+                trimPersisted(editor);
+            }
+            editor.putString(key, cityId).apply();
+        }
+        mCacheManager.onCacheGrown();
+    }
+
+    /**
+     * Removes the least recently used cells from the preferences beyond {@link #MAX_ENTRIES}
+     */
+    private void trimPersisted(SharedPreferences.Editor editor) {
+        int excess = mPersistedCount - MAX_ENTRIES;
+        if (excess <= 0) return;
+        mPersistedCount -= excess;
+        //The cells shed from memory are older than any cell still in memory
+        for (String key : mPreferences.getAll().keySet()) {
+            if (excess == 0) return;
+            if (mCells.containsKey(key)) continue;
+            editor.remove(key);
+            excess--;
+        }
+        Iterator<Map.Entry<String, String>> eldest = mCells.entrySet().iterator();
+        while (excess > 0 && eldest.hasNext()) {
+            Map.Entry<String, String> entry = eldest.next();
+            editor.remove(entry.getKey());
+            mRetainedBytes -= getEntryBytes(entry.getKey(), entry.getValue());
+            eldest.remove();
+            excess--;
+        }
+    }
+
+    private static int getEntryBytes(String key, String cityId) {
+        return CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                + CacheManager.estimateBytes(cityId);
+    }
+
+    @Override
+    public String getName() {
+        return "geo city";
+    }
+
+    @Override
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    @Override
+    public int getRefetchCost() {
+        //Learnt again from the next weather response for the cell
+        return REFETCH_COST_FREE;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mCells.size();
+    }
+
+    @Override
+    public synchronized long shed(long bytes) {
+        long shed = 0;
+        Iterator<Map.Entry<String, String>> eldest = mCells.entrySet().iterator();
+        while (shed < bytes && eldest.hasNext()) {
+            Map.Entry<String, String> entry = eldest.next();
+            shed += getEntryBytes(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+        mRetainedBytes -= shed;
+        return shed;
+    }
+
+    static String getCellKey(double latitude, double longitude) {
+        return (long) Math.floor(latitude / CELL_SIZE_DEGREES) + ","
+                + (long) Math.floor(longitude / CELL_SIZE_DEGREES);
+    }
+}
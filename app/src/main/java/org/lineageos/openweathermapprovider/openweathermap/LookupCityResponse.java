@@ -26,21 +26,25 @@ public class LookupCityResponse implements Serializable {
 
     @SerializedName("list")
     private List<CityInfo> cities;
-    static class CityInfo {
-        private String id = "";
-        private String name = "";
+    //Every match carries the current weather of the city, in the same shape as the current
+    //weather end point
+    static class CityInfo extends CurrentWeatherResponse {
         private Sys sys;
 
         static class Sys {
             private String country = "";
         }
 
+        @Override
         public String getCityId() {
-            return id;
+            final String id = super.getCityId();
+            return id != null ? id : "";
         }
 
+        @Override
         public String getCityName() {
-            return name;
+            final String name = super.getCityName();
+            return name != null ? name : "";
         }
 
         public String getCountry() {
@@ -0,0 +1,98 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.os.SystemClock;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Queries the server recently answered with not found, an empty result or a malformed response.
+ * Repeats of these queries fail right away instead of hitting the network again.
+ */
+class NegativeCache extends ManagedLruCache<NegativeCache.Entry> {
+
+    //Short enough for a city added to the server side database to show up quickly
+    private static final long MAX_ENTRY_AGE_MS = 5L * 60L * 1000L;
+
+    static class Entry {
+        final long failedAt = SystemClock.elapsedRealtime();
+        final int bytes;
+
+        Entry(String key) {
+            this.bytes = CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key);
+        }
+    }
+
+    private long mHits;
+
+    NegativeCache(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    static String getLookupKey(String cityName, String language) {
+        return "lookup:" + cityName.trim().toLowerCase(Locale.ROOT) + ":" + language;
+    }
+
+    /**
+     * @return true if the query recently failed
+     */
+    synchronized boolean contains(String key) {
+        final Entry entry = getEntry(key);
+        if (entry == null) return false;
+        if (SystemClock.elapsedRealtime() - entry.failedAt > MAX_ENTRY_AGE_MS) {
+            removeEntry(key);
+            return false;
+        }
+        mHits++;
+        return true;
+    }
+
+    void put(String key) {
+        putEntry(key, new Entry(key));
+    }
+
+    /**
+     * Drops every entry, the failures might not apply to other keys
+     */
+    void clear() {
+        clearEntries();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  negative cache: " + mHits + " hits");
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        return entry.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "negative";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        return REFETCH_COST_ONE_CALL;
+    }
+}
@@ -22,24 +22,43 @@ import retrofit2.http.GET;
 import retrofit2.http.Query;
 
 public interface OpenWeatherMapInterface {
+    //Only the city lookup asks for a language, nothing else we use is localized
     @GET("/data/2.5/weather")
     Call<CurrentWeatherResponse> queryCurrentWeather(@Query("id") String cityId,
-        @Query("units") String units, @Query("lang") String lang, @Query("appid") String appid);
+        @Query("units") String units, @Query("appid") String appid);
 
     @GET("/data/2.5/weather")
     Call<CurrentWeatherResponse> queryCurrentWeather(@Query("lat") double lat,
-        @Query("lon") double lon, @Query("units") String units, @Query("lang") String lang,
-            @Query("appid") String appid);
+        @Query("lon") double lon, @Query("units") String units, @Query("appid") String appid);
 
     @GET("/data/2.5/forecast")
     Call<ForecastResponse> queryForecast(@Query("id") String cityId, @Query("units") String units,
-        @Query("lang") String lang, @Query("appid") String appid);
+        @Query("cnt") Integer count, @Query("appid") String appid);
 
     @GET("/data/2.5/forecast")
     Call<ForecastResponse> queryForecast(@Query("lat") double lat, @Query("lon") double lon,
-        @Query("units") String units, @Query("lang") String lang, @Query("appid") String appid);
+        @Query("units") String units, @Query("cnt") Integer count, @Query("appid") String appid);
+
+    @GET("/data/2.5/forecast/daily")
+    Call<DailyForecastResponse> queryDailyForecast(@Query("id") String cityId,
+        @Query("units") String units, @Query("cnt") int count, @Query("appid") String appid);
+
+    @GET("/data/2.5/forecast/daily")
+    Call<DailyForecastResponse> queryDailyForecast(@Query("lat") double lat,
+        @Query("lon") double lon, @Query("units") String units, @Query("cnt") int count,
+            @Query("appid") String appid);
+
+    @GET("/data/2.5/box/city")
+    Call<BoxCityResponse> queryBoxCity(@Query("bbox") String boundingBox,
+        @Query("units") String units, @Query("appid") String appid);
+
+    //Up to 20 comma separated city IDs, the items have the layout of the bounding box end point
+    @GET("/data/2.5/group")
+    Call<BoxCityResponse> queryGroup(@Query("id") String cityIds, @Query("units") String units,
+        @Query("appid") String appid);
 
     @GET("/data/2.5/find")
-    Call<LookupCityResponse> lookupCity(@Query("q") String cityName, @Query("lang") String lang,
-        @Query("type") String searchType, @Query("appid") String appid);
+    Call<LookupCityResponse> lookupCity(@Query("q") String cityName, @Query("units") String units,
+        @Query("lang") String lang, @Query("type") String searchType, @Query("cnt") Integer count,
+            @Query("appid") String appid);
 }
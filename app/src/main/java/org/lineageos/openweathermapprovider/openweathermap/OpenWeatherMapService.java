@@ -19,23 +19,40 @@ package org.lineageos.openweathermapprovider.openweathermap;
 
 import android.content.Context;
 import android.location.Location;
+import android.os.CancellationSignal;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.text.TextUtils;
 
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.utils.FlightRecorder;
 import org.lineageos.openweathermapprovider.utils.Logging;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import lineageos.providers.LineageSettings;
 import lineageos.providers.WeatherContract;
+import lineageos.weather.RequestInfo;
 import lineageos.weather.WeatherInfo;
 import lineageos.weather.WeatherLocation;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import retrofit2.Call;
 import retrofit2.Response;
@@ -54,19 +71,319 @@ public class OpenWeatherMapService {
     private static final String METRIC_UNITS = "metric";
     private static final String IMPERIAL_UNITS = "imperial";
 
-    private final Retrofit mRetrofit;
-    private final OpenWeatherMapInterface mOpenWeatherMapInterface;
-    private volatile String mApiKey;
+    private static final String DEFAULT_BASE_URL = "http://api.openweathermap.org";
+
+    private static final String TRACE_NETWORK_WEATHER = "OWM:network weather";
+    private static final String TRACE_NETWORK_FORECAST = "OWM:network forecast";
+    private static final String TRACE_NETWORK_FIND = "OWM:network find";
+    private static final String TRACE_NETWORK_DAILY_FORECAST = "OWM:network daily forecast";
+    private static final String TRACE_NETWORK_BOX = "OWM:network box";
+
+    //Zoom level of the bounding box end point, the higher the more small towns are returned
+    private static final int TILE_ZOOM = 10;
+    public static final float DEFAULT_INTERPOLATION_RADIUS_METERS = 15f * 1000f;
+    public static final long DEFAULT_INTERPOLATION_MAX_AGE_MS = 30L * 60L * 1000L;
+    //The current weather drifts away from a forecast older than this
+    public static final long DEFAULT_FORECAST_INTERPOLATION_MAX_AGE_MS = 60L * 60L * 1000L;
+
+    //Strategies run in the shadow of a sample of the requests, their results are never delivered.
+    //Parallel calls the current weather and forecast end points concurrently, cache first and
+    //forecast interpolation answer from what was cached before the request
+    public static final String SHADOW_STRATEGY_NONE = "none";
+    public static final String SHADOW_STRATEGY_PARALLEL = "parallel";
+    public static final String SHADOW_STRATEGY_CACHE_FIRST = "cache_first";
+    public static final String SHADOW_STRATEGY_FORECAST_INTERPOLATION = "forecast_interpolation";
+    public static final float DEFAULT_SHADOW_SAMPLE_RATE = 0.1f;
+
+    //Bulk files are published hourly
+    public static final long DEFAULT_SNAPSHOT_MAX_AGE_MS = 2L * 60L * 60L * 1000L;
+
+    //Forecasts of the cities of a tile older than this are fetched again
+    private static final long MAX_TILE_FORECAST_AGE_MS = 3L * 60L * 60L * 1000L;
+
+    //The default forecast horizon, in days, of the 3h forecast end point
+    public static final int DEFAULT_FORECAST_DAYS = 5;
+    //Lookup results beyond this are not worth downloading in payload budget mode
+    private static final int MAX_LOOKUP_RESULTS = 10;
+
+    private final CountDownLatch mInitializedLatch = new CountDownLatch(1);
+    //Set once the initialization succeeded, before the latch is released
+    private volatile boolean mInitialized;
+    private OpenWeatherMapInterface mOpenWeatherMapInterface;
+    private final EndpointRouter mEndpointRouter
+            = new EndpointRouter(HttpUrl.parse(DEFAULT_BASE_URL));
+    private final ApiKeyPool mApiKeyPool = new ApiKeyPool();
     private Context mContext;
+    private final GeoCityCache mGeoCityCache;
+    private final TransferStats mTransferStats = new TransferStats();
+    private final TrafficRecorder mTrafficRecorder;
+    private final CacheManager mCacheManager;
+    private final WeatherCache mWeatherCache;
+    private final TileCache mTileCache;
+    private final ForecastCache mForecastCache;
+    private final SeedCache mSeedCache;
+    private final NegativeCache mNegativeCache;
+    private final SnapshotSource mSnapshotSource;
+    private final ResponseDigestCache mResponseDigests;
+    private final PublicationSchedule mPublicationSchedule;
+    private final SpatialEstimator mSpatialEstimator;
+    //Last temperature unit read from the settings by a worker thread, for the main thread
+    private volatile int mTempUnit = WeatherContract.WeatherColumns.TempUnit.CELSIUS;
+    //Language of the city lookups, resolved from the device locale
+    private volatile String mLanguageCode;
+    private volatile boolean mTileMode;
+    private volatile boolean mTilesUnavailable;
+    private volatile boolean mPayloadBudgetMode;
+    private volatile boolean mDailyForecastUnavailable;
+    private volatile int mForecastDays = DEFAULT_FORECAST_DAYS;
+    private volatile boolean mForecastInterpolation;
+    private volatile long mForecastInterpolationMaxAgeMs
+            = DEFAULT_FORECAST_INTERPOLATION_MAX_AGE_MS;
+    private volatile String mShadowStrategy = SHADOW_STRATEGY_NONE;
+    private volatile float mShadowSampleRate = DEFAULT_SHADOW_SAMPLE_RATE;
+    private final ShadowStats mShadowStats = new ShadowStats();
+    private final Random mRandom = new Random();
+    //Samples are skipped while a shadow strategy is running, so they can't pile up
+    private final AtomicBoolean mShadowRunning = new AtomicBoolean();
+    private final ExecutorService mShadowExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mShadowForecastExecutor = Executors.newSingleThreadExecutor();
 
     public OpenWeatherMapService(Context context) {
         mContext = context;
-        mRetrofit = buildRestAdapter();
-        mOpenWeatherMapInterface = mRetrofit.create(OpenWeatherMapInterface.class);
+        mCacheManager = new CacheManager(context);
+        mTrafficRecorder = new TrafficRecorder(context);
+        mGeoCityCache = new GeoCityCache(context, mCacheManager);
+        mWeatherCache = new WeatherCache(mCacheManager);
+        mTileCache = new TileCache(mCacheManager);
+        mForecastCache = new ForecastCache(mCacheManager);
+        mSeedCache = new SeedCache(mCacheManager);
+        mNegativeCache = new NegativeCache(mCacheManager);
+        mSnapshotSource = new SnapshotSource(context, mWeatherCache);
+        mResponseDigests = new ResponseDigestCache(mCacheManager);
+        mPublicationSchedule = new PublicationSchedule(mCacheManager);
+        mSpatialEstimator = new SpatialEstimator(mWeatherCache, mGeoCityCache);
     }
 
-    public void setApiKey(String apiKey) {
-        mApiKey = apiKey;
+    /**
+     * Builds the networking stack and loads the persisted caches. This is a blocking call and
+     * should never be called from the UI thread. Queries issued before this method returns will
+     * wait for it to complete. If it fails, the queries retry it and fail if it fails again.
+     */
+    public void initialize() {
+        try {
+            tryInitialize();
+        } finally {
+            mInitializedLatch.countDown();
+        }
+    }
+
+    private synchronized boolean tryInitialize() {
+        if (mInitialized) return true;
+        Trace.beginSection("OWM:initNetworking");
+        try {
+            getOpenWeatherMapInterface();
+            getTempUnitFromSettings();
+            mGeoCityCache.load();
+            mSnapshotSource.open();
+            mInitialized = true;
+        } catch (RuntimeException e) {
+            Logging.logw("Failed to initialize ", e);
+        } finally {
+            Trace.endSection();
+        }
+        return mInitialized;
+    }
+
+    /**
+     * @param apiKeys The keys requests are spread over
+     */
+    public void setApiKeys(List<String> apiKeys) {
+        mApiKeyPool.setKeys(apiKeys);
+        //The failures might have been caused by the previous keys
+        mNegativeCache.clear();
+        //The new keys might have access to the daily forecast and bounding box end points
+        mDailyForecastUnavailable = false;
+        mTilesUnavailable = false;
+    }
+
+    /**
+     * When enabled, geo requests fetch the current weather of every city in the surrounding
+     * tile, later requests within the tile are answered from the nearest city
+     */
+    public void setTileMode(boolean enabled) {
+        mTileMode = enabled;
+    }
+
+    /**
+     * When enabled, geo requests surrounded by recent cached results are estimated from them
+     * instead of being fetched
+     * @param radiusMeters Maximum distance of the cached results taken into account
+     * @param maxAgeMs Maximum age of the cached results taken into account
+     */
+    public void setSpatialInterpolation(boolean enabled, float radiusMeters, long maxAgeMs) {
+        mSpatialEstimator.setEnabled(enabled, radiusMeters, maxAgeMs);
+    }
+
+    /**
+     * When enabled, the current weather is derived from the two 3h forecast items around the
+     * current time if a recent forecast has been fetched for the location, instead of calling
+     * the current weather end point
+     * @param maxAgeMs Maximum age of the forecast the current weather is derived from
+     */
+    public void setForecastInterpolation(boolean enabled, long maxAgeMs) {
+        mForecastInterpolationMaxAgeMs = maxAgeMs;
+        mForecastInterpolation = enabled;
+    }
+
+    /**
+     * Runs a shadow strategy for a sample of the weather requests and compares its results with
+     * the delivered ones, see {@link #dump(PrintWriter)}
+     * @param strategy One of the SHADOW_STRATEGY constants
+     * @param sampleRate Fraction of the requests the strategy is run for
+     */
+    public void setShadowStrategy(String strategy, float sampleRate) {
+        if (!SHADOW_STRATEGY_PARALLEL.equals(strategy)
+                && !SHADOW_STRATEGY_CACHE_FIRST.equals(strategy)
+                && !SHADOW_STRATEGY_FORECAST_INTERPOLATION.equals(strategy)) {
+            if (strategy != null && !SHADOW_STRATEGY_NONE.equals(strategy)) {
+                Logging.logw("Unknown shadow strategy ", strategy);
+            }
+            strategy = SHADOW_STRATEGY_NONE;
+        }
+        mShadowSampleRate = sampleRate;
+        mShadowStrategy = strategy;
+    }
+
+    /**
+     * Loads the current weather of every city of an OpenWeatherMap bulk file into the local
+     * snapshot store, city requests are then answered from it while its observations are recent
+     * enough. This is a blocking call and should never be called from the UI thread
+     * @param bulkFile Gzipped JSON lines, nothing is done if it was ingested already
+     * @return The number of cities in the store, -1 if the file could not be ingested
+     */
+    public int ingestSnapshot(File bulkFile) {
+        if (!awaitInitialized()) return -1;
+        return mSnapshotSource.ingest(bulkFile);
+    }
+
+    /**
+     * @param maxAgeMs Maximum age of the snapshot observations city requests are answered with
+     */
+    public void setSnapshotMaxAge(long maxAgeMs) {
+        mSnapshotSource.setMaxAge(maxAgeMs);
+    }
+
+    /**
+     * @return true if the weather info was estimated rather than fetched, it should be replaced
+     * by a fetched result as soon as possible
+     */
+    public boolean isEstimate(WeatherInfo weatherInfo) {
+        return mSpatialEstimator.isEstimate(weatherInfo);
+    }
+
+    /**
+     * Enables the recording of the requests and of the HTTP traffic, see {@link TrafficRecorder}
+     */
+    public void setTrafficRecording(boolean enabled) {
+        mTrafficRecorder.setEnabled(enabled);
+    }
+
+    /**
+     * Records a request received by the provider, if the traffic recording is enabled
+     */
+    public void recordRequest(RequestInfo requestInfo) {
+        mTrafficRecorder.recordRequest(requestInfo);
+    }
+
+    /**
+     * Moves a refresh interval to just after the upstream publication of new data for the
+     * location of the request, rather than anywhere in between two publications
+     * @param interval The refresh interval wanted
+     * @return The interval unchanged if the publications of the location are not known yet
+     */
+    public long alignRefreshInterval(RequestInfo requestInfo, long interval) {
+        if (!mInitialized) return interval;
+        final String units = mapTempUnit(mTempUnit);
+        final String key;
+        if (requestInfo.getRequestType() == RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ) {
+            final Location location = requestInfo.getLocation();
+            final String cityId = mGeoCityCache.getCityId(location);
+            key = cityId != null ? WeatherCache.getCityIdKey(cityId, units)
+                    : WeatherCache.getGeoKey(location.getLatitude(), location.getLongitude(),
+                            units);
+        } else {
+            key = WeatherCache.getCityIdKey(requestInfo.getWeatherLocation().getCityId(), units);
+        }
+
+        final long now = System.currentTimeMillis();
+        final long refresh = mPublicationSchedule.alignRefresh(key, now, interval);
+        return refresh < 0 ? interval : refresh - now;
+    }
+
+    public void setApiKeyStateListener(ApiKeyPool.Listener listener) {
+        mApiKeyPool.setListener(listener);
+    }
+
+    /**
+     * When enabled, forecasts and lookups are capped to what we actually display and the daily
+     * forecast end point is preferred over the 3h one
+     */
+    public void setPayloadBudgetMode(boolean enabled) {
+        mPayloadBudgetMode = enabled;
+    }
+
+    /**
+     * @param days Number of forecast days requested in payload budget mode
+     */
+    public void setForecastDays(int days) {
+        mForecastDays = Math.max(1, Math.min(DEFAULT_FORECAST_DAYS, days));
+    }
+
+    /**
+     * Overrides the OpenWeatherMap end point, e.g. to use regional proxies speaking the same API
+     * or to point the service to a local stand-in. Requests are routed to the fastest end point.
+     * @param baseUrls The base URLs to use separated by commas or white spaces, or null to
+     *                 restore the default one
+     */
+    public void setBaseUrls(String baseUrls) {
+        List<HttpUrl> endpoints = new ArrayList<>();
+        if (baseUrls != null) {
+            for (String baseUrl : baseUrls.split("[,\\s]+")) {
+                if (TextUtils.isEmpty(baseUrl)) continue;
+                final HttpUrl url = HttpUrl.parse(baseUrl);
+                if (url != null) {
+                    endpoints.add(url);
+                } else {
+                    Logging.logw("Ignoring invalid base URL ", baseUrl);
+                }
+            }
+        }
+        if (endpoints.isEmpty()) {
+            endpoints.add(HttpUrl.parse(DEFAULT_BASE_URL));
+        }
+        mEndpointRouter.setEndpoints(endpoints);
+    }
+
+    private synchronized OpenWeatherMapInterface getOpenWeatherMapInterface() {
+        if (mOpenWeatherMapInterface == null) {
+            mOpenWeatherMapInterface = buildRestAdapter().create(OpenWeatherMapInterface.class);
+        }
+        return mOpenWeatherMapInterface;
+    }
+
+    /**
+     * Waits until {@link #initialize()} has completed, and retries it if it failed
+     * @return false if the service could not be initialized or the calling thread was
+     * interrupted while waiting
+     */
+    private boolean awaitInitialized() {
+        try {
+            mInitializedLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return mInitialized || tryInitialize();
     }
 
     /**
@@ -77,99 +394,595 @@ public class OpenWeatherMapService {
     public WeatherInfo queryWeather(WeatherLocation weatherLocation)
             throws InvalidApiKeyException {
 
-        if (!maybeValidApiKey(mApiKey)) {
-            throw new InvalidApiKeyException();
+        if (!awaitInitialized()) return null;
+        final int tempUnit = getTempUnitFromSettings();
+        final WeatherInfo snapshotWeather = mSnapshotSource.query(weatherLocation.getCityId(),
+                tempUnit, mapTempUnit(tempUnit));
+        if (snapshotWeather != null) return snapshotWeather;
+        return queryWeather(new CityIdQuery(weatherLocation.getCityId()));
+    }
+
+    /**
+     * This is a synchronous call and should never be called from the UI thread
+     * @param location A {@link WeatherInfo} weather info object if the call was successfully
+     *                 processed by the end point, null otherwise
+     * @throws InvalidApiKeyException If the application ID has not been set
+     */
+    public WeatherInfo queryWeather(Location location) throws InvalidApiKeyException {
+        return queryWeather(location, true);
+    }
+
+    /**
+     * This is a synchronous call and should never be called from the UI thread
+     * @param allowEstimate Whether the weather can be estimated from the cached results around
+     *                      the location, when the spatial interpolation is enabled
+     * @throws InvalidApiKeyException If the application ID has not been set
+     */
+    public WeatherInfo queryWeather(Location location, boolean allowEstimate)
+            throws InvalidApiKeyException {
+        if (!awaitInitialized()) return null;
+
+        if (allowEstimate && mSpatialEstimator.isEnabled()) {
+            final WeatherInfo weatherInfo = mSpatialEstimator.query(location,
+                    mapTempUnit(getTempUnitFromSettings()));
+            if (weatherInfo != null) return weatherInfo;
+        }
+
+        if (mTileMode && !mTilesUnavailable) {
+            final WeatherInfo weatherInfo = queryWeatherFromTile(location);
+            FlightRecorder.record(weatherInfo != null ? FlightRecorder.EVENT_CACHE_HIT
+                    : FlightRecorder.EVENT_CACHE_MISS, FlightRecorder.CACHE_TILE, 0);
+            if (weatherInfo != null) return weatherInfo;
+        }
+
+        //If we already know which city this location resolves to, share the city ID path
+        final String cityId = mGeoCityCache.getCityId(location);
+        if (cityId != null) {
+            Logging.logd("Location resolved to city ID ", cityId);
+            return queryWeather(new CityIdQuery(cityId));
         }
+        return queryWeather(new GeoQuery(location));
+    }
 
-        String language = getLanguageCode();
+    /**
+     * Doesn't block, the temperature unit is the one last read by a query
+     * @return The latest weather info processed for this location in the current temperature
+     * unit, null if there is none or the service has not been initialized yet
+     */
+    public WeatherInfo getCachedWeather(WeatherLocation weatherLocation) {
+        if (!mInitialized) return null;
+        final String units = mapTempUnit(mTempUnit);
+        return mWeatherCache.get(WeatherCache.getCityIdKey(weatherLocation.getCityId(), units));
+    }
+
+    /**
+     * Doesn't block, the temperature unit is the one last read by a query
+     * @return The latest weather info processed for this location in the current temperature
+     * unit, null if there is none or the service has not been initialized yet
+     */
+    public WeatherInfo getCachedWeather(Location location) {
+        if (!mInitialized) return null;
+        final String units = mapTempUnit(mTempUnit);
+        final String cityId = mGeoCityCache.getCityId(location);
+        if (cityId != null) {
+            WeatherInfo weatherInfo = mWeatherCache.get(WeatherCache.getCityIdKey(cityId, units));
+            if (weatherInfo != null) return weatherInfo;
+        }
+        return mWeatherCache.get(WeatherCache.getGeoKey(location.getLatitude(),
+                location.getLongitude(), units));
+    }
+
+    /**
+     * Answers from the nearest city of the tile containing the location, fetching the tile first
+     * if needed. The forecast of that city is reused while recent enough.
+     * @return null if the tile has no city close enough or could not be fetched
+     */
+    private WeatherInfo queryWeatherFromTile(Location location) throws InvalidApiKeyException {
         final int tempUnit = getTempUnitFromSettings();
         final String units = mapTempUnit(tempUnit);
-        Call<CurrentWeatherResponse> weatherResponseCall
-                = mOpenWeatherMapInterface.queryCurrentWeather(weatherLocation.getCityId(),
-                units, language, mApiKey);
-        Response<CurrentWeatherResponse> currentWeatherResponse;
+        TileCache.Tile tile = mTileCache.get(location, units);
+        if (tile == null) {
+            tile = queryTile(location, units);
+            if (tile == null) return null;
+        }
+        final CurrentWeatherResponse city = tile.getNearestCity(location);
+        if (city == null) return null;
+
+        final WeatherInfo cityWeather = mWeatherCache.get(
+                WeatherCache.getCityIdKey(city.getCityId(), units));
+        if (cityWeather == null
+                || System.currentTimeMillis() - cityWeather.getTimestamp()
+                        > MAX_TILE_FORECAST_AGE_MS) {
+            Logging.logd("No recent forecast for tile city ", city.getCityId());
+            return queryWeather(new CityIdQuery(city.getCityId()));
+        }
+
+        final WeatherInfo.Builder builder = buildCurrentWeather(city, tempUnit);
+        if (builder == null) return null;
+        final WeatherInfo weatherInfo = builder.setForecast(cityWeather.getForecasts()).build();
+        mWeatherCache.put(WeatherCache.getGeoKey(location.getLatitude(), location.getLongitude(),
+                units), units, weatherInfo, city.getLatitude(), city.getLongitude());
+        return weatherInfo;
+    }
+
+    private TileCache.Tile queryTile(Location location, String units)
+            throws InvalidApiKeyException {
+        final String apiKey = acquireApiKey();
+        if (apiKey == null) return null;
         try {
-            Logging.logd(weatherResponseCall.request().toString());
-            currentWeatherResponse = weatherResponseCall.execute();
+            Response<BoxCityResponse> r = execute(getOpenWeatherMapInterface().queryBoxCity(
+                    TileCache.getBoundingBox(location, TILE_ZOOM), units, apiKey), apiKey,
+                    TRACE_NETWORK_BOX);
+            if (r.code() == 200) {
+                return mTileCache.put(location, units, r.body().getCityList());
+            } else if (r.code() == 401 || r.code() == 404) {
+                //Not every plan, nor every compatible end point, offers the bounding box search
+                Logging.logd("Bounding box search not available");
+                mTilesUnavailable = true;
+            }
         } catch (IOException e) {
-            //An error occurred while talking to the server
+            Logging.logd("IOException while requesting tile ", e);
+        }
+        return null;
+    }
+
+    /**
+     * Reserves a call, so only to be used right before calling the network
+     * @return The key to use for the next request, null if all the valid keys are rate limited
+     * @throws InvalidApiKeyException If no key has been set or all of them have been rejected
+     */
+    private String acquireApiKey() throws InvalidApiKeyException {
+        final String apiKey = mApiKeyPool.acquire();
+        if (apiKey == null && !mApiKeyPool.hasValidKeys()) {
+            throw new InvalidApiKeyException();
+        }
+        return apiKey;
+    }
+
+    private WeatherInfo queryWeather(final WeatherQuery query) throws InvalidApiKeyException {
+        final String strategy = mShadowStrategy;
+        if (SHADOW_STRATEGY_NONE.equals(strategy) || mRandom.nextFloat() >= mShadowSampleRate
+                || !mShadowRunning.compareAndSet(false, true)) {
+            return fetchWeather(query);
+        }
+
+        final int tempUnit = getTempUnitFromSettings();
+        final String key = query.getCacheKey(mapTempUnit(tempUnit));
+        //The fetch refreshes the caches the cache based strategies answer from
+        final WeatherInfo cachedWeather = mWeatherCache.get(key);
+        final ForecastResponse cachedForecast = mForecastCache.get(key, Long.MAX_VALUE);
+        final TransferStats.Meter meter = new TransferStats.Meter();
+        final long start = SystemClock.elapsedRealtime();
+        final WeatherInfo weatherInfo;
+        mTransferStats.startMeter(meter);
+        try {
+            weatherInfo = fetchWeather(query);
+        } catch (InvalidApiKeyException e) {
+            mShadowRunning.set(false);
+            throw e;
+        } finally {
+            mTransferStats.stopMeter();
+        }
+        if (weatherInfo == null) {
+            mShadowRunning.set(false);
             return null;
         }
 
-        if (currentWeatherResponse.code() == 200) {
-            //Query the forecast now. We can return a valid WeatherInfo object without the forecast
-            //but the user is expecting both the current weather and the forecast
-            Call<ForecastResponse> forecastResponseCall
-                    = mOpenWeatherMapInterface.queryForecast(weatherLocation.getCityId(),
-                    units, language, mApiKey);
-            ForecastResponse forecastResponse = null;
-            try {
-                Logging.logd(forecastResponseCall.request().toString());
-                Response<ForecastResponse> r = forecastResponseCall.execute();
-                if (r.code() == 200) forecastResponse = r.body();
-            } catch (IOException e) {
-                //this is an error we can live with
-                Logging.logd("IOException while requesting forecast " + e);
+        final ShadowStats.Cost cost = new ShadowStats.Cost(SystemClock.elapsedRealtime() - start,
+                meter.requests, meter.bytes);
+        mShadowExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runShadowStrategy(strategy, query, tempUnit, cachedWeather, cachedForecast,
+                            weatherInfo, cost);
+                } finally {
+                    mShadowRunning.set(false);
+                }
             }
-            return processWeatherResponse(currentWeatherResponse.body(), forecastResponse,
-                    tempUnit);
-        } else {
-            return null;
+        });
+        return weatherInfo;
+    }
+
+    private void runShadowStrategy(String strategy, WeatherQuery query, int tempUnit,
+            WeatherInfo cachedWeather, ForecastResponse cachedForecast, WeatherInfo delivered,
+            ShadowStats.Cost deliveredCost) {
+        final TransferStats.Meter meter = new TransferStats.Meter();
+        final long start = SystemClock.elapsedRealtime();
+        WeatherInfo weatherInfo = null;
+        if (SHADOW_STRATEGY_PARALLEL.equals(strategy)) {
+            //Only spend calls the keys can spare
+            final String apiKey = mApiKeyPool.acquire();
+            if (apiKey == null) return;
+            weatherInfo = fetchWeatherInParallel(query, apiKey, tempUnit, meter);
+        } else if (SHADOW_STRATEGY_CACHE_FIRST.equals(strategy)) {
+            weatherInfo = cachedWeather;
+        } else if (SHADOW_STRATEGY_FORECAST_INTERPOLATION.equals(strategy)) {
+            weatherInfo = cachedForecast != null
+                    ? interpolateCurrentWeather(cachedForecast, tempUnit) : null;
         }
+        mShadowStats.record(strategy, delivered, deliveredCost, weatherInfo,
+                new ShadowStats.Cost(SystemClock.elapsedRealtime() - start, meter.requests,
+                        meter.bytes));
     }
 
     /**
-     * This is a synchronous call and should never be called from the UI thread
-     * @param location A {@link WeatherInfo} weather info object if the call was successfully
-     *                 processed by the end point, null otherwise
-     * @throws InvalidApiKeyException If the application ID has not been set
+     * Calls the current weather and 3h forecast end points concurrently. Nothing is cached, the
+     * result is only used for comparison
      */
-    public WeatherInfo queryWeather(Location location) throws InvalidApiKeyException {
-        if (!maybeValidApiKey(mApiKey)) {
-            throw new InvalidApiKeyException();
+    private WeatherInfo fetchWeatherInParallel(final WeatherQuery query, final String apiKey,
+            int tempUnit, TransferStats.Meter meter) {
+        final OpenWeatherMapInterface api = getOpenWeatherMapInterface();
+        final String units = mapTempUnit(tempUnit);
+        final Integer count = mPayloadBudgetMode ? mForecastDays * FORECAST_ITEMS_PER_DAY : null;
+        final TransferStats.Meter forecastMeter = new TransferStats.Meter();
+        final Future<Response<ForecastResponse>> forecast = mShadowForecastExecutor.submit(
+                new Callable<Response<ForecastResponse>>() {
+            @Override
+            public Response<ForecastResponse> call() throws IOException {
+                mTransferStats.startMeter(forecastMeter);
+                try {
+                    return execute(query.queryForecast(api, units, count, apiKey),
+                            apiKey, TRACE_NETWORK_FORECAST);
+                } finally {
+                    mTransferStats.stopMeter();
+                }
+            }
+        });
+
+        Response<CurrentWeatherResponse> currentWeatherResponse = null;
+        Response<ForecastResponse> forecastResponse = null;
+        mTransferStats.startMeter(meter);
+        try {
+            currentWeatherResponse = execute(query.queryCurrentWeather(api, units, apiKey),
+                    apiKey, TRACE_NETWORK_WEATHER);
+            forecastResponse = forecast.get();
+        } catch (IOException | ExecutionException e) {
+            Logging.logd("Exception while running the parallel strategy ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mTransferStats.stopMeter();
         }
+        try {
+            //Wait for the forecast call even if the current weather failed, to meter it
+            if (forecastResponse == null) forecast.get();
+        } catch (ExecutionException e) {
+            //The forecast is not needed anymore
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        meter.requests += forecastMeter.requests;
+        meter.bytes += forecastMeter.bytes;
 
-        String language = getLanguageCode();
+        if (currentWeatherResponse == null || currentWeatherResponse.code() != 200) return null;
+        return processWeatherResponse(currentWeatherResponse.body(),
+                forecastResponse != null && forecastResponse.code() == 200
+                        ? forecastResponse.body() : null, null, tempUnit);
+    }
+
+    private WeatherInfo fetchWeather(WeatherQuery query) throws InvalidApiKeyException {
+        final OpenWeatherMapInterface api = getOpenWeatherMapInterface();
         final int tempUnit = getTempUnitFromSettings();
         final String units = mapTempUnit(tempUnit);
-        Call<CurrentWeatherResponse> weatherResponseCall
-                = mOpenWeatherMapInterface.queryCurrentWeather(location.getLatitude(),
-                location.getLongitude(), units, language, mApiKey);
-        Response<CurrentWeatherResponse> currentWeatherResponse;
-        try {
-            Logging.logd(weatherResponseCall.request().toString());
-            currentWeatherResponse = weatherResponseCall.execute();
-        } catch (IOException e) {
-            //An error occurred while talking to the server
-            Logging.logd("IOException while requesting weather " + e);
+        final boolean payloadBudgetMode = mPayloadBudgetMode;
+        if (mNegativeCache.contains(query.getCacheKey(units))) {
+            Logging.logd("Not found recently, skipping ", query.getCacheKey(units));
+            FlightRecorder.record(FlightRecorder.EVENT_CACHE_HIT, FlightRecorder.CACHE_NEGATIVE, 0);
             return null;
         }
 
-        if (currentWeatherResponse.code() == 200) {
+        //Nothing new can be fetched before the next publication, unless some were missed
+        if (mPublicationSchedule.getNextPublication(query.getCacheKey(units))
+                > System.currentTimeMillis()) {
+            final WeatherInfo cachedWeather = mWeatherCache.get(query.getCacheKey(units),
+                    mPublicationSchedule.getPeriod(query.getCacheKey(units)));
+            if (cachedWeather != null) {
+                Logging.logd("Nothing published since the last fetch, using cached weather");
+                FlightRecorder.record(FlightRecorder.EVENT_CACHE_HIT,
+                        FlightRecorder.CACHE_PUBLICATION, 0);
+                return cachedWeather;
+            }
+        }
+
+        if (mForecastInterpolation) {
+            final ForecastResponse forecastResponse = mForecastCache.get(
+                    query.getCacheKey(units), mForecastInterpolationMaxAgeMs);
+            final WeatherInfo weatherInfo = forecastResponse != null
+                    ? interpolateCurrentWeather(forecastResponse, tempUnit) : null;
+            FlightRecorder.record(weatherInfo != null ? FlightRecorder.EVENT_CACHE_HIT
+                    : FlightRecorder.EVENT_CACHE_MISS, FlightRecorder.CACHE_FORECAST, 0);
+            if (weatherInfo != null) {
+                Logging.logd("Interpolated current weather from cached forecast");
+                mWeatherCache.put(query.getCacheKey(units), units, weatherInfo,
+                        forecastResponse.getLatitude(), forecastResponse.getLongitude());
+                return weatherInfo;
+            }
+        }
+
+        //Everything from here on calls the network, at least for the forecast
+        final String apiKey = acquireApiKey();
+        if (apiKey == null) return null;
+
+        //A city picked from a lookup comes with its current weather
+        CurrentWeatherResponse currentWeather = mSeedCache.take(query.getCacheKey(units));
+        if (currentWeather != null) {
+            Logging.logd("Using current weather from city lookup");
+            FlightRecorder.record(FlightRecorder.EVENT_CACHE_HIT, FlightRecorder.CACHE_SEED, 0);
+        } else {
+            Response<CurrentWeatherResponse> currentWeatherResponse;
+            try {
+                currentWeatherResponse = execute(query.queryCurrentWeather(api, units, apiKey),
+                        apiKey, TRACE_NETWORK_WEATHER, query.getCacheKey(units));
+            } catch (IOException e) {
+                //An error occurred while talking to the server
+                Logging.logd("IOException while requesting weather ", e);
+                return null;
+            }
+
+            onApiKeyResponse(apiKey, currentWeatherResponse.code());
+            if (currentWeatherResponse.code() == 200) {
+                currentWeather = currentWeatherResponse.body();
+            } else if (currentWeatherResponse.code() == 404) {
+                mNegativeCache.put(query.getCacheKey(units));
+            }
+        }
+
+        if (currentWeather != null && currentWeather.getInternalCode() == 404) {
+            //No point in asking for the forecast of a location that can't be found
+            mNegativeCache.put(query.getCacheKey(units));
+            return null;
+        }
+
+        if (currentWeather != null) {
+            mPublicationSchedule.onData(query.getCacheKey(units),
+                    currentWeather.getObservationTime());
+
             //Query the forecast now. We can return a valid WeatherInfo object without the forecast
             //but the user is expecting both the current weather and the forecast
-            Call<ForecastResponse> forecastResponseCall
-                    = mOpenWeatherMapInterface.queryForecast(location.getLatitude(),
-                    location.getLongitude(), units, language, mApiKey);
+            DailyForecastResponse dailyForecastResponse = null;
+            if (payloadBudgetMode && !mDailyForecastUnavailable) {
+                dailyForecastResponse = queryDailyForecast(query, api, units, apiKey);
+            }
             ForecastResponse forecastResponse = null;
-            try {
-                Logging.logd(forecastResponseCall.request().toString());
-                Response<ForecastResponse> r = forecastResponseCall.execute();
-                if (r.code() == 200) forecastResponse = r.body();
-            } catch (IOException e) {
-                //this is an error we can live with
-                Logging.logd("IOException while requesting forecast " + e);
+            if (dailyForecastResponse == null) {
+                final Integer count = payloadBudgetMode
+                        ? mForecastDays * FORECAST_ITEMS_PER_DAY : null;
+                try {
+                    Response<ForecastResponse> r = execute(query.queryForecast(api, units,
+                            count, apiKey), apiKey, TRACE_NETWORK_FORECAST,
+                            query.getCacheKey(units));
+                    if (r.code() == 200) {
+                        forecastResponse = r.body();
+                        mForecastCache.put(query.getCacheKey(units), forecastResponse);
+                    }
+                } catch (IOException e) {
+                    //this is an error we can live with
+                    Logging.logd("IOException while requesting forecast ", e);
+                }
+            }
+            //Unchanged responses are handed out as the same instances by the converter
+            WeatherInfo weatherInfo = mResponseDigests.getWeather(query.getCacheKey(units),
+                    currentWeather, forecastResponse, dailyForecastResponse);
+            if (weatherInfo != null) {
+                Logging.logd("Responses unchanged, reusing the weather info");
+            } else {
+                final long start = Debug.threadCpuTimeNanos();
+                weatherInfo = processWeatherResponse(currentWeather, forecastResponse,
+                        dailyForecastResponse, tempUnit);
+                if (weatherInfo != null) {
+                    mResponseDigests.putWeather(query.getCacheKey(units), weatherInfo,
+                            Math.max(0L, Debug.threadCpuTimeNanos() - start), currentWeather,
+                            forecastResponse, dailyForecastResponse);
+                }
             }
-            return processWeatherResponse(currentWeatherResponse.body(), forecastResponse,
-                    tempUnit);
+            if (weatherInfo != null) {
+                mWeatherCache.put(query.getCacheKey(units), units, weatherInfo,
+                        currentWeather.getLatitude(), currentWeather.getLongitude());
+                query.onWeatherProcessed(currentWeather);
+            } else {
+                //The response lacks the city name or the temperature
+                mNegativeCache.put(query.getCacheKey(units));
+            }
+            return weatherInfo;
         } else {
             return null;
         }
     }
 
+    private DailyForecastResponse queryDailyForecast(WeatherQuery query,
+            OpenWeatherMapInterface api, String units, String apiKey) {
+        try {
+            Response<DailyForecastResponse> r = execute(query.queryDailyForecast(api, units,
+                    mForecastDays, apiKey), apiKey, TRACE_NETWORK_DAILY_FORECAST,
+                    query.getCacheKey(units));
+            if (r.code() == 200) {
+                return r.body();
+            } else if (r.code() == 401 || r.code() == 404) {
+                //The key is valid since we got the current weather, but the daily forecast is
+                //not part of every subscription plan. Stick to the 3h forecast for this key
+                Logging.logd("Daily forecast not available");
+                mDailyForecastUnavailable = true;
+            }
+        } catch (IOException e) {
+            //We'll fall back to the 3h forecast
+            Logging.logd("IOException while requesting daily forecast ", e);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the calls for a given location, so the city ID and coordinates end points can
+     * share the query logic
+     */
+    private abstract static class WeatherQuery {
+        abstract Call<CurrentWeatherResponse> queryCurrentWeather(OpenWeatherMapInterface api,
+                String units, String appId);
+
+        abstract Call<ForecastResponse> queryForecast(OpenWeatherMapInterface api, String units,
+                Integer count, String appId);
+
+        abstract Call<DailyForecastResponse> queryDailyForecast(OpenWeatherMapInterface api,
+                String units, int count, String appId);
+
+        abstract String getCacheKey(String units);
+
+        void onWeatherProcessed(CurrentWeatherResponse currentWeather) {}
+    }
+
+    private static class CityIdQuery extends WeatherQuery {
+        private final String mCityId;
+
+        CityIdQuery(String cityId) {
+            mCityId = cityId;
+        }
+
+        @Override
+        Call<CurrentWeatherResponse> queryCurrentWeather(OpenWeatherMapInterface api,
+                String units, String appId) {
+            return api.queryCurrentWeather(mCityId, units, appId);
+        }
+
+        @Override
+        Call<ForecastResponse> queryForecast(OpenWeatherMapInterface api, String units,
+                Integer count, String appId) {
+            return api.queryForecast(mCityId, units, count, appId);
+        }
+
+        @Override
+        Call<DailyForecastResponse> queryDailyForecast(OpenWeatherMapInterface api,
+                String units, int count, String appId) {
+            return api.queryDailyForecast(mCityId, units, count, appId);
+        }
+
+        @Override
+        String getCacheKey(String units) {
+            return WeatherCache.getCityIdKey(mCityId, units);
+        }
+    }
+
+    private class GeoQuery extends WeatherQuery {
+        private final Location mLocation;
+
+        GeoQuery(Location location) {
+            mLocation = location;
+        }
+
+        @Override
+        Call<CurrentWeatherResponse> queryCurrentWeather(OpenWeatherMapInterface api,
+                String units, String appId) {
+            return api.queryCurrentWeather(mLocation.getLatitude(), mLocation.getLongitude(),
+                    units, appId);
+        }
+
+        @Override
+        Call<ForecastResponse> queryForecast(OpenWeatherMapInterface api, String units,
+                Integer count, String appId) {
+            return api.queryForecast(mLocation.getLatitude(), mLocation.getLongitude(), units,
+                    count, appId);
+        }
+
+        @Override
+        Call<DailyForecastResponse> queryDailyForecast(OpenWeatherMapInterface api,
+                String units, int count, String appId) {
+            return api.queryDailyForecast(mLocation.getLatitude(), mLocation.getLongitude(),
+                    units, count, appId);
+        }
+
+        @Override
+        String getCacheKey(String units) {
+            return WeatherCache.getGeoKey(mLocation.getLatitude(), mLocation.getLongitude(),
+                    units);
+        }
+
+        @Override
+        void onWeatherProcessed(CurrentWeatherResponse currentWeather) {
+            mGeoCityCache.put(mLocation, currentWeather.getCityId(),
+                    currentWeather.getLatitude(), currentWeather.getLongitude());
+        }
+    }
+
+    /**
+     * Executes a call made for a location, its body is not parsed again if it is identical to
+     * the last one received for the location
+     * @param digestKey The cache key of the location
+     */
+    private <T> Response<T> execute(Call<T> call, String apiKey, String traceSection,
+            String digestKey) throws IOException {
+        mResponseDigests.setCurrentKey(digestKey);
+        try {
+            return execute(call, apiKey, traceSection);
+        } finally {
+            mResponseDigests.clearCurrentKey();
+        }
+    }
+
+    private <T> Response<T> execute(Call<T> call, String apiKey, String traceSection)
+            throws IOException {
+        Logging.logd("Executing ", call.request());
+        Trace.beginSection(traceSection);
+        final long start = SystemClock.elapsedRealtime();
+        //Recorded as -1 if the call doesn't get a response
+        int code = -1;
+        try {
+            final Response<T> response = call.execute();
+            code = response.code();
+            mApiKeyPool.onResponse(apiKey, code);
+            return response;
+        } finally {
+            FlightRecorder.record(FlightRecorder.EVENT_HTTP, code,
+                    SystemClock.elapsedRealtime() - start);
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Updates the key health from the response of a call every valid key has access to
+     */
+    private void onApiKeyResponse(String apiKey, int code) {
+        if (code == 200) {
+            mApiKeyPool.onVerified(apiKey);
+        } else if (code == 401) {
+            mApiKeyPool.onInvalid(apiKey);
+        }
+    }
+
     private WeatherInfo processWeatherResponse(CurrentWeatherResponse currentWeatherResponse,
-            ForecastResponse forecastResponse, int tempUnit) {
+            ForecastResponse forecastResponse, DailyForecastResponse dailyForecastResponse,
+            int tempUnit) {
+        Trace.beginSection("OWM:processWeather");
+        try {
+            return buildWeatherInfo(currentWeatherResponse, forecastResponse,
+                    dailyForecastResponse, tempUnit);
+        } finally {
+            Trace.endSection();
+        }
+    }
 
+    private WeatherInfo buildWeatherInfo(CurrentWeatherResponse currentWeatherResponse,
+            ForecastResponse forecastResponse, DailyForecastResponse dailyForecastResponse,
+            int tempUnit) {
+        WeatherInfo.Builder builder = buildCurrentWeather(currentWeatherResponse, tempUnit);
+        if (builder == null) return null;
+
+        if (dailyForecastResponse != null) {
+            builder.setForecast(buildDailyForecast(dailyForecastResponse));
+        } else if (forecastResponse != null) {
+            final int condition = ResponseMapper.mapConditionIconToCode(
+                    currentWeatherResponse.getWeatherIconId(),
+                    currentWeatherResponse.getConditionCode());
+            builder.setForecast(buildForecast(forecastResponse, condition,
+                    currentWeatherResponse.getTodaysMaxTemp(),
+                    currentWeatherResponse.getTodaysMinTemp()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return A builder populated with the current weather, null if the response is not usable
+     */
+    private WeatherInfo.Builder buildCurrentWeather(CurrentWeatherResponse currentWeatherResponse,
+            int tempUnit) {
         if (currentWeatherResponse.getInternalCode() == 404) {
             //OpenWeatherMap might return 404 even if we supplied a valid lat/lon or the
             //city ID that we got by looking up a city...not our fault
@@ -182,9 +995,10 @@ public class OpenWeatherMapService {
         if (cityName == null || Double.isNaN(temperature)) return null;
 
         WeatherInfo.Builder builder = new WeatherInfo.Builder(cityName,
-                sanitizeTemperature(temperature, true), tempUnit)
+                ResponseMapper.sanitizeTemperature(temperature, true), tempUnit)
                         .setTimestamp(System.currentTimeMillis());
-        final int condition = mapConditionIconToCode(currentWeatherResponse.getWeatherIconId(),
+        final int condition = ResponseMapper.mapConditionIconToCode(
+                currentWeatherResponse.getWeatherIconId(),
                 currentWeatherResponse.getConditionCode());
         builder.setWeatherCondition(condition);
 
@@ -204,136 +1018,328 @@ public class OpenWeatherMapService {
         }
 
         final double windDir = currentWeatherResponse.getWindDirection();
-        double windSpeed = currentWeatherResponse.getWindSpeed();
+        final double windSpeed = currentWeatherResponse.getWindSpeed();
         if (!Double.isNaN(windDir) && !Double.isNaN(windSpeed)) {
+            //Imperial units report the wind speed in mph
             if (tempUnit == WeatherContract.WeatherColumns.TempUnit.CELSIUS) {
-                windSpeed *= MPS_TO_KPH;
+                builder.setWind(windSpeed * MPS_TO_KPH, windDir,
+                        WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
+            } else {
+                builder.setWind(windSpeed, windDir,
+                        WeatherContract.WeatherColumns.WindSpeedUnit.MPH);
             }
-            builder.setWind(windSpeed, windDir, WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
-        }
-
-        if (forecastResponse != null) {
-            List<WeatherInfo.DayForecast> forecastList = new ArrayList<>();
-            List<ForecastResponse.DayForecast> forecastResponses =
-                    forecastResponse.getForecastList();
-            double dayMinimum = Double.NaN;
-            double dayMaximum = Double.NaN;
-            WeatherInfo.DayForecast.Builder forecastBuilder = null;
-            int maxItems = forecastResponses.size();
-            for (int i = 0; i < maxItems; i++) {
-                ForecastResponse.DayForecast forecast = forecastResponses.get(i);
-
-                Calendar forecastCalendar = Calendar.getInstance();
-                forecastCalendar.setTimeInMillis(forecast.getTimestamp() * 1000);
-
-                // If the first forecast item is for the next day, add a forecast item with
-                // today's values so the list is populated correctly.
-                if (i == 0) {
-                    int forecastDay = forecastCalendar.get(Calendar.DAY_OF_YEAR);
-                    int currentDay = Calendar.getInstance().get(Calendar.DAY_OF_YEAR);
-                    if (currentDay != forecastDay) {
-                        forecastBuilder = new WeatherInfo.DayForecast.Builder(condition);
-                        if (!Double.isNaN(todaysHigh)) {
-                            forecastBuilder.setHigh(todaysHigh);
-                        }
-                        if (!Double.isNaN(todaysLow)) {
-                            forecastBuilder.setLow(todaysLow);
-                        }
-                        forecastList.add(forecastBuilder.build());
-
-                        // Remove items from the list so we add the forecast for 5 days only
-                        maxItems -= FORECAST_ITEMS_PER_DAY;
-                    }
-                }
+        }
+        return builder;
+    }
 
-                final double max = forecast.getMaxTemp();
-                if (!Double.isNaN(max) && (Double.isNaN(dayMaximum) || max > dayMaximum)) {
-                    dayMaximum = max;
-                }
+    /**
+     * Derives the current weather from the two 3h forecast items around the current time.
+     * Temperature, humidity and wind speed are interpolated linearly, the wind direction is
+     * averaged as a vector and the condition is the one of the nearest item.
+     * @return null if the forecast doesn't cover the current time
+     */
+    private WeatherInfo interpolateCurrentWeather(ForecastResponse forecastResponse,
+            int tempUnit) {
+        final String cityName = forecastResponse.getCityName();
+        final List<ForecastResponse.DayForecast> items = forecastResponse.getForecastList();
+        if (cityName == null || items == null) return null;
+
+        final long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i + 1 < items.size(); i++) {
+            final ForecastResponse.DayForecast before = items.get(i);
+            final ForecastResponse.DayForecast after = items.get(i + 1);
+            if (now < before.getTimestamp() || now >= after.getTimestamp()) continue;
+
+            final double fraction = (double) (now - before.getTimestamp())
+                    / (after.getTimestamp() - before.getTimestamp());
+            final double temperature = interpolate(before.getTemperature(),
+                    after.getTemperature(), fraction);
+            if (Double.isNaN(temperature)) return null;
+
+            final ForecastResponse.DayForecast nearest = fraction < 0.5d ? before : after;
+            final int condition = ResponseMapper.mapConditionIconToCode(
+                    nearest.getWeatherIconId(), nearest.getConditionCode());
+            WeatherInfo.Builder builder = new WeatherInfo.Builder(cityName,
+                    ResponseMapper.sanitizeTemperature(temperature, true), tempUnit)
+                            .setTimestamp(System.currentTimeMillis());
+            builder.setWeatherCondition(condition);
+
+            final double humidity = interpolate(before.getHumidity(), after.getHumidity(),
+                    fraction);
+            if (!Double.isNaN(humidity)) {
+                builder.setHumidity(humidity);
+            }
 
-                final double min = forecast.getMinTemp();
-                if (!Double.isNaN(min) && (Double.isNaN(dayMinimum) || min < dayMinimum)) {
-                    dayMinimum = min;
+            final double windSpeed = interpolate(before.getWindSpeed(), after.getWindSpeed(),
+                    fraction);
+            final double windDir = interpolateDirection(before, after, fraction);
+            if (!Double.isNaN(windDir) && !Double.isNaN(windSpeed)) {
+                if (tempUnit == WeatherContract.WeatherColumns.TempUnit.CELSIUS) {
+                    builder.setWind(windSpeed * MPS_TO_KPH, windDir,
+                            WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
+                } else {
+                    builder.setWind(windSpeed, windDir,
+                            WeatherContract.WeatherColumns.WindSpeedUnit.MPH);
                 }
+            }
 
-                // Every 8th (8 x 3h = 24h) time create the builder with the result's weather
-                // so you get a forecast for the same time every day
-                if (i % FORECAST_ITEMS_PER_DAY == 0) {
-                    forecastBuilder = new WeatherInfo.DayForecast.Builder(mapConditionIconToCode(
-                            forecast.getWeatherIconId(), forecast.getConditionCode()));
-                }
+            //The forecast items of today bound today's high and low
+            double todaysHigh = temperature;
+            double todaysLow = temperature;
+            final int today = Calendar.getInstance().get(Calendar.DAY_OF_YEAR);
+            final Calendar itemCalendar = Calendar.getInstance();
+            for (ForecastResponse.DayForecast item : items) {
+                itemCalendar.setTimeInMillis(item.getTimestamp() * 1000);
+                if (itemCalendar.get(Calendar.DAY_OF_YEAR) != today) continue;
+                if (item.getMaxTemp() > todaysHigh) todaysHigh = item.getMaxTemp();
+                if (item.getMinTemp() < todaysLow) todaysLow = item.getMinTemp();
+            }
+            builder.setTodaysHigh(todaysHigh);
+            builder.setTodaysLow(todaysLow);
+            builder.setForecast(buildForecast(forecastResponse, condition, todaysHigh,
+                    todaysLow));
+            return builder.build();
+        }
+        return null;
+    }
+
+    private static double interpolate(double before, double after, double fraction) {
+        if (Double.isNaN(before)) return fraction >= 0.5d ? after : Double.NaN;
+        if (Double.isNaN(after)) return fraction < 0.5d ? before : Double.NaN;
+        return before + (after - before) * fraction;
+    }
+
+    /**
+     * @return The wind direction, in degrees, of the speed weighted average of the wind vectors
+     */
+    private static double interpolateDirection(ForecastResponse.DayForecast before,
+            ForecastResponse.DayForecast after, double fraction) {
+        final double beforeDir = before.getWindDirection();
+        final double afterDir = after.getWindDirection();
+        if (Double.isNaN(beforeDir) || Double.isNaN(afterDir)) {
+            return fraction < 0.5d ? beforeDir : afterDir;
+        }
+        final double beforeWeight = (1d - fraction) * Math.max(before.getWindSpeed(), 0.1d);
+        final double afterWeight = fraction * Math.max(after.getWindSpeed(), 0.1d);
+        final double x = beforeWeight * Math.cos(Math.toRadians(beforeDir))
+                + afterWeight * Math.cos(Math.toRadians(afterDir));
+        final double y = beforeWeight * Math.sin(Math.toRadians(beforeDir))
+                + afterWeight * Math.sin(Math.toRadians(afterDir));
+        return (Math.toDegrees(Math.atan2(y, x)) + 360d) % 360d;
+    }
 
-                // If it's the last result of each day (within 3 hours from the next day),
-                // build the forecast and add the calculated min and max temperatures
-                int forecastHour = forecastCalendar.get(Calendar.HOUR_OF_DAY);
-                if (forecastHour >= 21) {
-                    if (!Double.isNaN(dayMinimum)) {
-                        forecastBuilder.setLow(dayMinimum);
+    private List<WeatherInfo.DayForecast> buildDailyForecast(
+            DailyForecastResponse dailyForecastResponse) {
+        List<WeatherInfo.DayForecast> forecastList = new ArrayList<>();
+        for (DailyForecastResponse.DayForecast forecast
+                : dailyForecastResponse.getForecastList()) {
+            WeatherInfo.DayForecast.Builder forecastBuilder = new WeatherInfo.DayForecast.Builder(
+                    ResponseMapper.mapConditionIconToCode(forecast.getWeatherIconId(),
+                            forecast.getConditionCode()));
+            if (!Double.isNaN(forecast.getMaxTemp())) {
+                forecastBuilder.setHigh(forecast.getMaxTemp());
+            }
+            if (!Double.isNaN(forecast.getMinTemp())) {
+                forecastBuilder.setLow(forecast.getMinTemp());
+            }
+            forecastList.add(forecastBuilder.build());
+        }
+        return forecastList;
+    }
+
+    private List<WeatherInfo.DayForecast> buildForecast(ForecastResponse forecastResponse,
+            int condition, double todaysHigh, double todaysLow) {
+        List<WeatherInfo.DayForecast> forecastList = new ArrayList<>();
+        List<ForecastResponse.DayForecast> forecastResponses =
+                forecastResponse.getForecastList();
+        double dayMinimum = Double.NaN;
+        double dayMaximum = Double.NaN;
+        WeatherInfo.DayForecast.Builder forecastBuilder = null;
+        int maxItems = forecastResponses.size();
+        for (int i = 0; i < maxItems; i++) {
+            ForecastResponse.DayForecast forecast = forecastResponses.get(i);
+
+            Calendar forecastCalendar = Calendar.getInstance();
+            forecastCalendar.setTimeInMillis(forecast.getTimestamp() * 1000);
+
+            // If the first forecast item is for the next day, add a forecast item with
+            // today's values so the list is populated correctly.
+            if (i == 0) {
+                int forecastDay = forecastCalendar.get(Calendar.DAY_OF_YEAR);
+                int currentDay = Calendar.getInstance().get(Calendar.DAY_OF_YEAR);
+                if (currentDay != forecastDay) {
+                    forecastBuilder = new WeatherInfo.DayForecast.Builder(condition);
+                    if (!Double.isNaN(todaysHigh)) {
+                        forecastBuilder.setHigh(todaysHigh);
                     }
-                    if (!Double.isNaN(dayMaximum)) {
-                        forecastBuilder.setHigh(dayMaximum);
+                    if (!Double.isNaN(todaysLow)) {
+                        forecastBuilder.setLow(todaysLow);
                     }
                     forecastList.add(forecastBuilder.build());
-                    dayMinimum = Double.NaN;
-                    dayMaximum = Double.NaN;
+
+                    // Remove items from the list so we add the forecast for 5 days only
+                    maxItems -= FORECAST_ITEMS_PER_DAY;
+                }
+            }
+
+            final double max = forecast.getMaxTemp();
+            if (!Double.isNaN(max) && (Double.isNaN(dayMaximum) || max > dayMaximum)) {
+                dayMaximum = max;
+            }
+
+            final double min = forecast.getMinTemp();
+            if (!Double.isNaN(min) && (Double.isNaN(dayMinimum) || min < dayMinimum)) {
+                dayMinimum = min;
+            }
+
+            // Every 8th (8 x 3h = 24h) time create the builder with the result's weather
+            // so you get a forecast for the same time every day
+            if (i % FORECAST_ITEMS_PER_DAY == 0) {
+                forecastBuilder = new WeatherInfo.DayForecast.Builder(
+                        ResponseMapper.mapConditionIconToCode(forecast.getWeatherIconId(),
+                                forecast.getConditionCode()));
+            }
+
+            // If it's the last result of each day (within 3 hours from the next day),
+            // build the forecast and add the calculated min and max temperatures
+            int forecastHour = forecastCalendar.get(Calendar.HOUR_OF_DAY);
+            if (forecastHour >= 21) {
+                if (!Double.isNaN(dayMinimum)) {
+                    forecastBuilder.setLow(dayMinimum);
+                }
+                if (!Double.isNaN(dayMaximum)) {
+                    forecastBuilder.setHigh(dayMaximum);
                 }
+                forecastList.add(forecastBuilder.build());
+                dayMinimum = Double.NaN;
+                dayMaximum = Double.NaN;
             }
-            builder.setForecast(forecastList);
         }
-        return builder.build();
+        return forecastList;
     }
 
     /**
      * This is a synchronous call and should never be called from the UI thread
      * @param cityName
+     * @param cancellationSignal Optional signal used to abort the request while in flight
      * @return Array of {@link WeatherLocation} weather locations. This method will always return a
      * list, but the list might be empty if no match was found
      * @throws InvalidApiKeyException If the application ID has not been set
      */
-    public List<WeatherLocation> lookupCity(String cityName) throws InvalidApiKeyException {
-        if (!maybeValidApiKey(mApiKey)) {
-            throw new InvalidApiKeyException();
-        }
+    public List<WeatherLocation> lookupCity(String cityName, CancellationSignal cancellationSignal)
+            throws InvalidApiKeyException {
+        if (!awaitInitialized()) return new ArrayList<>();
 
-        Call<LookupCityResponse> lookupCityCall = mOpenWeatherMapInterface.lookupCity(
-                cityName, getLanguageCode(), SEARCH_CITY_TYPE, mApiKey);
+        final String language = getLanguageCode();
+        final String negativeKey = NegativeCache.getLookupKey(cityName, language);
+        if (mNegativeCache.contains(negativeKey)) {
+            Logging.logd("No match recently, skipping lookup of ", cityName);
+            FlightRecorder.record(FlightRecorder.EVENT_CACHE_HIT, FlightRecorder.CACHE_NEGATIVE, 0);
+            return new ArrayList<>();
+        }
+        final String apiKey = acquireApiKey();
+        if (apiKey == null) return new ArrayList<>();
+
+        final Integer count = mPayloadBudgetMode ? MAX_LOOKUP_RESULTS : null;
+        final String units = mapTempUnit(getTempUnitFromSettings());
+        final Call<LookupCityResponse> lookupCityCall = getOpenWeatherMapInterface().lookupCity(
+                cityName, units, language, SEARCH_CITY_TYPE, count, apiKey);
+        if (cancellationSignal != null) {
+            //Invoked right away if the signal has already been cancelled
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    lookupCityCall.cancel();
+                }
+            });
+        }
 
         Response<LookupCityResponse> lookupResponse;
         try {
-            Logging.logd(lookupCityCall.request().toString());
-            lookupResponse = lookupCityCall.execute();
+            lookupResponse = execute(lookupCityCall, apiKey, TRACE_NETWORK_FIND);
         } catch (IOException e) {
-            Logging.logd("IOException while looking up city name " + e);
+            Logging.logd("IOException while looking up city name ", e);
             //Return empty list to prevent NPE
             return new ArrayList<>();
         }
 
-        if (lookupResponse != null && lookupResponse.code() == 200) {
+        onApiKeyResponse(apiKey, lookupResponse.code());
+        if (lookupResponse.code() == 200) {
             List<WeatherLocation> weatherLocations = new ArrayList<>();
             for (LookupCityResponse.CityInfo cityInfo: lookupResponse.body().getCityInfoList()) {
                 WeatherLocation location
                         = new WeatherLocation.Builder(cityInfo.getCityId(),
                                 cityInfo.getCityName()).setCountry(cityInfo.getCountry()).build();
                 weatherLocations.add(location);
+                if (!TextUtils.isEmpty(cityInfo.getCityId())
+                        && !TextUtils.isEmpty(cityInfo.getCityName())
+                        && !Double.isNaN(cityInfo.getTemperature())) {
+                    mSeedCache.put(WeatherCache.getCityIdKey(cityInfo.getCityId(), units),
+                            cityInfo);
+                }
             }
+            if (weatherLocations.isEmpty()) mNegativeCache.put(negativeKey);
             return weatherLocations;
         } else {
+            if (lookupResponse.code() == 404) mNegativeCache.put(negativeKey);
             //Return empty list to prevent NPE
             return new ArrayList<>();
         }
     }
 
     private Retrofit buildRestAdapter() {
-        final OkHttpClient httpClient = new OkHttpClient().newBuilder().build();
+        //OkHttp transparently requests gzip and decompresses it, the stats are recorded by a
+        //network interceptor so they reflect the bytes actually transferred
+        final OkHttpClient httpClient = new OkHttpClient().newBuilder()
+                .addInterceptor(mTrafficRecorder)
+                .addInterceptor(mEndpointRouter)
+                .addNetworkInterceptor(mTransferStats)
+                .build();
 
-        final String baseUrl = "http://api.openweathermap.org";
+        //The router rewrites the host of every request
         return new Retrofit.Builder()
-                .baseUrl(baseUrl)
+                .baseUrl(DEFAULT_BASE_URL)
                 .client(httpClient)
-                .addConverterFactory(GsonConverterFactory.create())
+                .addConverterFactory(new TracingConverterFactory(new DigestConverterFactory(
+                        GsonConverterFactory.create(), mResponseDigests)))
                 .build();
     }
 
+    /**
+     * @param level The level passed to {@link android.content.ComponentCallbacks2#onTrimMemory}
+     */
+    public void onTrimMemory(int level) {
+        mCacheManager.onTrimMemory(level);
+    }
+
+    /**
+     * Drops the language resolved from the device locale, it is resolved again for the next
+     * city lookup
+     */
+    public void onConfigurationChanged() {
+        mLanguageCode = null;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("  payload budget mode: " + mPayloadBudgetMode
+                + ", forecast days: " + mForecastDays
+                + ", daily forecast unavailable: " + mDailyForecastUnavailable);
+        pw.println("  tile mode: " + mTileMode + ", tiles unavailable: " + mTilesUnavailable);
+        mSpatialEstimator.dump(pw);
+        pw.println("  forecast interpolation: " + mForecastInterpolation
+                + ", max age: " + mForecastInterpolationMaxAgeMs + "ms");
+        pw.println("  shadow strategy: " + mShadowStrategy
+                + ", sample rate: " + mShadowSampleRate);
+        mShadowStats.dump(pw);
+        mSnapshotSource.dump(pw);
+        mResponseDigests.dump(pw);
+        mNegativeCache.dump(pw);
+        mCacheManager.dump(pw);
+        mApiKeyPool.dump(pw);
+        mEndpointRouter.dump(pw);
+        mTransferStats.dump(pw);
+    }
+
     /**
      * Supported languages http://openweathermap.org/forecast5#multi
      */
@@ -365,6 +1371,15 @@ public class OpenWeatherMapService {
 
 
     private String getLanguageCode() {
+        String languageCode = mLanguageCode;
+        if (languageCode == null) {
+            languageCode = resolveLanguageCode();
+            mLanguageCode = languageCode;
+        }
+        return languageCode;
+    }
+
+    private String resolveLanguageCode() {
         Locale locale = mContext.getResources().getConfiguration().locale;
         String selector = locale.getLanguage();
 
@@ -381,147 +1396,6 @@ public class OpenWeatherMapService {
         }
     }
 
-    // OpenWeatherMap sometimes returns temperatures in Kelvin even if we ask it
-    // for deg C or deg F. Detect this and convert accordingly.
-    private double sanitizeTemperature(double value, boolean metric) {
-        // threshold chosen to work for both C and F. 170 deg F is hotter
-        // than the hottest place on earth.
-        if (value > 170d) {
-            // K -> deg C
-            value -= 273.15d;
-            if (!metric) {
-                // deg C -> deg F
-                value = (value * 1.8d) + 32d;
-            }
-        }
-        return value;
-    }
-
-    private static final HashMap<String, Integer> ICON_MAPPING = new HashMap<>();
-    static {
-        ICON_MAPPING.put("01d", WeatherContract.WeatherColumns.WeatherCode.SUNNY);
-        ICON_MAPPING.put("01n", WeatherContract.WeatherColumns.WeatherCode.CLEAR_NIGHT);
-        ICON_MAPPING.put("02d", WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_DAY);
-        ICON_MAPPING.put("02n", WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_NIGHT);
-        ICON_MAPPING.put("03d", WeatherContract.WeatherColumns.WeatherCode.CLOUDY);
-        ICON_MAPPING.put("03n", WeatherContract.WeatherColumns.WeatherCode.CLOUDY);
-        ICON_MAPPING.put("04d", WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_DAY);
-        ICON_MAPPING.put("04n", WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_NIGHT);
-        ICON_MAPPING.put("09d", WeatherContract.WeatherColumns.WeatherCode.SHOWERS);
-        ICON_MAPPING.put("09n", WeatherContract.WeatherColumns.WeatherCode.SHOWERS);
-        ICON_MAPPING.put("10d", WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SHOWERS);
-        ICON_MAPPING.put("10n", WeatherContract.WeatherColumns.WeatherCode.THUNDERSHOWER);
-        ICON_MAPPING.put("11d", WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS);
-        ICON_MAPPING.put("11n", WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS);
-        ICON_MAPPING.put("13d", WeatherContract.WeatherColumns.WeatherCode.SNOW);
-        ICON_MAPPING.put("13n", WeatherContract.WeatherColumns.WeatherCode.SNOW);
-        ICON_MAPPING.put("50d", WeatherContract.WeatherColumns.WeatherCode.HAZE);
-        ICON_MAPPING.put("50n", WeatherContract.WeatherColumns.WeatherCode.FOGGY);
-    }
-
-    private int mapConditionIconToCode(String icon, int conditionId) {
-
-        // First, use condition ID for specific cases
-        switch (conditionId) {
-            // Thunderstorms
-            case 202:   // thunderstorm with heavy rain
-            case 232:   // thunderstorm with heavy drizzle
-            case 211:   // thunderstorm
-                return WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS;
-            case 212:   // heavy thunderstorm
-                return WeatherContract.WeatherColumns.WeatherCode.HURRICANE;
-            case 221:   // ragged thunderstorm
-            case 231:   // thunderstorm with drizzle
-            case 201:   // thunderstorm with rain
-                return WeatherContract.WeatherColumns.WeatherCode.SCATTERED_THUNDERSTORMS;
-            case 230:   // thunderstorm with light drizzle
-            case 200:   // thunderstorm with light rain
-            case 210:   // light thunderstorm
-                return WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSTORMS;
-
-            // Drizzle
-            case 300:   // light intensity drizzle
-            case 301:   // drizzle
-            case 302:   // heavy intensity drizzle
-            case 310:   // light intensity drizzle rain
-            case 311:   // drizzle rain
-            case 312:   // heavy intensity drizzle rain
-            case 313:   // shower rain and drizzle
-            case 314:   // heavy shower rain and drizzle
-            case 321:   // shower drizzle
-                return WeatherContract.WeatherColumns.WeatherCode.DRIZZLE;
-
-            // Rain
-            case 500:   // light rain
-            case 501:   // moderate rain
-            case 520:   // light intensity shower rain
-            case 521:   // shower rain
-            case 531:   // ragged shower rain
-            case 502:   // heavy intensity rain
-            case 503:   // very heavy rain
-            case 504:   // extreme rain
-            case 522:   // heavy intensity shower rain
-                return WeatherContract.WeatherColumns.WeatherCode.SHOWERS;
-            case 511:   // freezing rain
-                return WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN;
-
-            // Snow
-            case 600: case 620: // light snow
-                return WeatherContract.WeatherColumns.WeatherCode.LIGHT_SNOW_SHOWERS;
-            case 601: case 621: // snow
-                return WeatherContract.WeatherColumns.WeatherCode.SNOW;
-            case 602: case 622: // heavy snow
-                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_SNOW;
-            case 611: case 612: // sleet
-                return WeatherContract.WeatherColumns.WeatherCode.SLEET;
-            case 615: case 616: // rain and snow
-                return WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_SNOW;
-
-            // Atmosphere
-            case 741:   // fog
-                return WeatherContract.WeatherColumns.WeatherCode.FOGGY;
-            case 711:   // smoke
-            case 762:   // volcanic ash
-                return WeatherContract.WeatherColumns.WeatherCode.SMOKY;
-            case 701:   // mist
-            case 721:   // haze
-                return WeatherContract.WeatherColumns.WeatherCode.HAZE;
-            case 731:   // sand/dust whirls
-            case 751:   // sand
-            case 761:   // dust
-                return WeatherContract.WeatherColumns.WeatherCode.DUST;
-            case 771:   // squalls
-                return WeatherContract.WeatherColumns.WeatherCode.BLUSTERY;
-            case 781:   // tornado
-                return WeatherContract.WeatherColumns.WeatherCode.TORNADO;
-
-            // Extreme
-            case 900:   // tornado
-                return WeatherContract.WeatherColumns.WeatherCode.TORNADO;
-            case 901:   // tropical storm
-                return WeatherContract.WeatherColumns.WeatherCode.TROPICAL_STORM;
-            case 902:   // hurricane
-                return WeatherContract.WeatherColumns.WeatherCode.HURRICANE;
-            case 903:   // cold
-                return WeatherContract.WeatherColumns.WeatherCode.COLD;
-            case 904:   // hot
-                return WeatherContract.WeatherColumns.WeatherCode.HOT;
-            case 905:   // windy
-                return WeatherContract.WeatherColumns.WeatherCode.WINDY;
-            case 906:   // hail
-                return WeatherContract.WeatherColumns.WeatherCode.HAIL;
-        }
-
-        // Not yet handled - Use generic icon mapping
-        Integer condition = ICON_MAPPING.get(icon);
-        if (condition != null) {
-            return condition;
-        }
-
-        return WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
-    }
-
-
     public final static class InvalidApiKeyException extends Exception {
 
         public InvalidApiKeyException() {
@@ -529,19 +1403,20 @@ public class OpenWeatherMapService {
         }
     }
 
-    private boolean maybeValidApiKey(String key) {
-        return key != null && !TextUtils.equals(key, "");
-    }
-
+    /**
+     * Reads the setting through the content resolver, never call it from the UI thread
+     */
     private int getTempUnitFromSettings() {
+        int tempUnit;
         try {
-            final int tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
+            tempUnit = LineageSettings.Global.getInt(mContext.getContentResolver(),
                     LineageSettings.Global.WEATHER_TEMPERATURE_UNIT);
-            return tempUnit;
         } catch (LineageSettings.LineageSettingNotFoundException e) {
             //Default to metric
-            return WeatherContract.WeatherColumns.TempUnit.CELSIUS;
+            tempUnit = WeatherContract.WeatherColumns.TempUnit.CELSIUS;
         }
+        mTempUnit = tempUnit;
+        return tempUnit;
     }
 
     private String mapTempUnit(int tempUnit) {
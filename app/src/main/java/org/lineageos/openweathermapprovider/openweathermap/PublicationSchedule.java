@@ -0,0 +1,148 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+/**
+ * Learns when OpenWeatherMap publishes new current weather for each location from the data
+ * timestamps of the responses. Nothing new can be fetched before the next publication, so the
+ * requests made until then are answered from the cache and refreshes are timed right after it.
+ * The forecast isn't tracked: its first item is a fixed slot time, not the time it was made.
+ */
+class PublicationSchedule extends ManagedLruCache<PublicationSchedule.Entry> {
+
+    //Refreshes are timed this long after the expected publication, to absorb some jitter
+    private static final long PUBLICATION_MARGIN_MS = 60L * 1000L;
+    //Upstream publishes at least this often, a longer gap between two data times means nothing
+    //was fetched for a while. Same as the default minimum refresh interval of the provider.
+    private static final long MAX_PERIOD_MS = 10L * 60L * 1000L;
+    private static final int ENTRY_BYTES = 64;
+
+    static class Entry {
+        final int bytes;
+        //Latest data time seen, in ms
+        long dataTime;
+        //Shortest time between two data times seen, -1 until there were two
+        long period = -1;
+        //Shortest time between the data time and the first response carrying it
+        long lag = MAX_PERIOD_MS;
+
+        Entry(String key) {
+            this.bytes = CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                    + ENTRY_BYTES;
+        }
+
+        long getNextPublication() {
+            return dataTime + period + lag;
+        }
+    }
+
+    PublicationSchedule(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    /**
+     * @param dataTime The data timestamp of a current weather response, in seconds since the
+     * epoch
+     */
+    void onData(String key, long dataTime) {
+        if (dataTime <= 0) return;
+        final long dataTimeMs = dataTime * 1000L;
+        final long now = System.currentTimeMillis();
+        boolean added = false;
+        synchronized (this) {
+            Entry entry = getEntry(key);
+            if (entry == null) {
+                entry = new Entry(key);
+                storeEntry(key, entry);
+                added = true;
+            }
+            if (entry.dataTime > 0 && dataTimeMs > entry.dataTime) {
+                final long period = Math.min(dataTimeMs - entry.dataTime, MAX_PERIOD_MS);
+                entry.period = entry.period < 0 ? period : Math.min(entry.period, period);
+            }
+            //An older observation re-served by another station doesn't move the schedule back
+            entry.dataTime = Math.max(entry.dataTime, dataTimeMs);
+            entry.lag = Math.max(0L, Math.min(entry.lag, now - dataTimeMs));
+        }
+        if (added) notifyGrown();
+    }
+
+    /**
+     * @return The time new current weather is expected for the key in ms since the epoch, -1 if
+     * the publications of the key are not known yet
+     */
+    synchronized long getNextPublication(String key) {
+        final Entry entry = getKnownEntry(key);
+        return entry != null ? entry.getNextPublication() : -1;
+    }
+
+    /**
+     * @return The shortest time between two publications for the key in ms, -1 if the
+     * publications of the key are not known yet
+     */
+    synchronized long getPeriod(String key) {
+        final Entry entry = getKnownEntry(key);
+        return entry != null ? entry.period : -1;
+    }
+
+    /**
+     * Moves a refresh to just after the first expected publication at or after it, so it is
+     * never brought forward of the interval wanted
+     * @param interval The refresh interval wanted
+     * @return The time of the refresh in ms since the epoch, -1 if the publications of the key
+     * are not known yet
+     */
+    synchronized long alignRefresh(String key, long now, long interval) {
+        final Entry entry = getKnownEntry(key);
+        if (entry == null) return -1;
+        long publication = entry.getNextPublication();
+        if (publication <= now) {
+            //Overdue, expect it at the next period boundary
+            publication += ((now - publication) / entry.period + 1) * entry.period;
+        }
+        final long periods = Math.max(0L, (long) Math.ceil(
+                (double) (now + interval - publication) / entry.period));
+        return publication + periods * entry.period + PUBLICATION_MARGIN_MS;
+    }
+
+    /**
+     * @return The entry of the key if its period is known, null otherwise
+     */
+    private Entry getKnownEntry(String key) {
+        final Entry entry = getEntry(key);
+        return entry != null && entry.period > 0 ? entry : null;
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        return entry.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "publication schedule";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        //Without it, requests before the next publication are fetched again
+        return REFETCH_COST_ONE_CALL;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import lineageos.weather.WeatherInfo;
+
+/**
+ * Digest of the last successful response body of each location and end point, with the body
+ * parsed from it, and the weather info last built from the bodies of each location. Upstream
+ * data changes far less often than it is polled, so a body identical to the previous one is
+ * neither parsed nor processed again.
+ */
+class ResponseDigestCache extends ManagedLruCache<ResponseDigestCache.Entry> {
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    //Rough ratio between the memory retained by a parsed body and its JSON size
+    private static final int PARSED_BODY_FACTOR = 2;
+
+    static class Entry {
+        final int bytes;
+        //Thread CPU time spent producing the entry, saved every time it is reused
+        final long cpuNanos;
+
+        Entry(int bytes, long cpuNanos) {
+            this.bytes = bytes;
+            this.cpuNanos = cpuNanos;
+        }
+    }
+
+    private static class BodyEntry extends Entry {
+        final byte[] digest;
+        final Object body;
+
+        BodyEntry(String key, byte[] digest, Object body, int length, long cpuNanos) {
+            super(CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                    + digest.length + length * PARSED_BODY_FACTOR, cpuNanos);
+            this.digest = digest;
+            this.body = body;
+        }
+    }
+
+    private static class WeatherEntry extends Entry {
+        final Object[] bodies;
+        final WeatherInfo weatherInfo;
+
+        WeatherEntry(String key, Object[] bodies, WeatherInfo weatherInfo, long cpuNanos) {
+            super(CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                    + WeatherCache.estimateBytes(weatherInfo), cpuNanos);
+            this.bodies = bodies;
+            this.weatherInfo = weatherInfo;
+        }
+    }
+
+    //Location the calls executed by the current thread are made for
+    private final ThreadLocal<String> mCurrentKey = new ThreadLocal<>();
+
+    private long mParses;
+    private long mParsesSkipped;
+    private long mBuilds;
+    private long mBuildsSkipped;
+    private long mCpuNanosSaved;
+
+    ResponseDigestCache(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    /**
+     * Digests the bodies of the calls executed by the current thread under this key, until
+     * {@link #clearCurrentKey()}
+     */
+    void setCurrentKey(String key) {
+        mCurrentKey.set(key);
+    }
+
+    void clearCurrentKey() {
+        mCurrentKey.remove();
+    }
+
+    String getCurrentKey() {
+        return mCurrentKey.get();
+    }
+
+    /**
+     * @return The digest of the body, null if the platform lacks the algorithm
+     */
+    static byte[] digest(byte[] body) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(body);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The body previously parsed from a body with this digest, null if the last body
+     * received for the key was different
+     */
+    synchronized Object getBody(String key, byte[] digest) {
+        final Entry entry = getEntry(key);
+        if (entry instanceof BodyEntry && Arrays.equals(((BodyEntry) entry).digest, digest)) {
+            mParsesSkipped++;
+            mCpuNanosSaved += entry.cpuNanos;
+            return ((BodyEntry) entry).body;
+        }
+        return null;
+    }
+
+    void putBody(String key, byte[] digest, Object body, int length, long cpuNanos) {
+        putEntry(key, new BodyEntry(key, digest, body, length, cpuNanos));
+        synchronized (this) {
+            mParses++;
+        }
+    }
+
+    /**
+     * @param bodies The bodies the weather info is built from, compared by identity
+     * @return The weather info last built from the same bodies with a fresh timestamp, null if
+     * the bodies changed since
+     */
+    synchronized WeatherInfo getWeather(String key, Object... bodies) {
+        final Entry entry = getEntry(key);
+        if (!(entry instanceof WeatherEntry)) return null;
+        final WeatherEntry weatherEntry = (WeatherEntry) entry;
+        if (weatherEntry.bodies.length != bodies.length) return null;
+        for (int i = 0; i < bodies.length; i++) {
+            if (weatherEntry.bodies[i] != bodies[i]) return null;
+        }
+        mBuildsSkipped++;
+        mCpuNanosSaved += entry.cpuNanos;
+        return withTimestamp(weatherEntry.weatherInfo, System.currentTimeMillis());
+    }
+
+    void putWeather(String key, WeatherInfo weatherInfo, long cpuNanos, Object... bodies) {
+        putEntry(key, new WeatherEntry(key, bodies, weatherInfo, cpuNanos));
+        synchronized (this) {
+            mBuilds++;
+        }
+    }
+
+    private static WeatherInfo withTimestamp(WeatherInfo weatherInfo, long timestamp) {
+        WeatherInfo.Builder builder = new WeatherInfo.Builder(weatherInfo.getCity(),
+                weatherInfo.getTemperature(), weatherInfo.getTemperatureUnit())
+                .setTimestamp(timestamp)
+                .setWeatherCondition(weatherInfo.getConditionCode())
+                .setForecast(weatherInfo.getForecasts());
+        if (!Double.isNaN(weatherInfo.getHumidity())) {
+            builder.setHumidity(weatherInfo.getHumidity());
+        }
+        if (!Double.isNaN(weatherInfo.getTodaysHigh())) {
+            builder.setTodaysHigh(weatherInfo.getTodaysHigh());
+        }
+        if (!Double.isNaN(weatherInfo.getTodaysLow())) {
+            builder.setTodaysLow(weatherInfo.getTodaysLow());
+        }
+        if (!Double.isNaN(weatherInfo.getWindSpeed())
+                && !Double.isNaN(weatherInfo.getWindDirection())) {
+            builder.setWind(weatherInfo.getWindSpeed(), weatherInfo.getWindDirection(),
+                    weatherInfo.getWindSpeedUnit());
+        }
+        return builder.build();
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  response digests: " + mParsesSkipped + " of "
+                + (mParses + mParsesSkipped) + " parses skipped, " + mBuildsSkipped + " of "
+                + (mBuilds + mBuildsSkipped) + " builds skipped, "
+                + mCpuNanosSaved / 1000000L + "ms CPU saved");
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        return entry.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "response digests";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        //Only saves CPU, the calls are made anyway
+        return REFETCH_COST_FREE;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import java.util.HashMap;
+
+import lineageos.providers.WeatherContract;
+
+/**
+ * Maps the values of the OpenWeatherMap responses to the ones of the weather contract. Free of
+ * Android dependencies, so the batch engine can share it.
+ */
+public class ResponseMapper {
+
+    // OpenWeatherMap sometimes returns temperatures in Kelvin even if we ask it
+    // for deg C or deg F. Detect this and convert accordingly.
+    public static double sanitizeTemperature(double value, boolean metric) {
+        // threshold chosen to work for both C and F. 170 deg F is hotter
+        // than the hottest place on earth.
+        if (value > 170d) {
+            // K -> deg C
+            value -= 273.15d;
+            if (!metric) {
+                // deg C -> deg F
+                value = (value * 1.8d) + 32d;
+            }
+        }
+        return value;
+    }
+
+    private static final HashMap<String, Integer> ICON_MAPPING = new HashMap<>();
+    static {
+        ICON_MAPPING.put("01d", WeatherContract.WeatherColumns.WeatherCode.SUNNY);
+        ICON_MAPPING.put("01n", WeatherContract.WeatherColumns.WeatherCode.CLEAR_NIGHT);
+        ICON_MAPPING.put("02d", WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_DAY);
+        ICON_MAPPING.put("02n", WeatherContract.WeatherColumns.WeatherCode.PARTLY_CLOUDY_NIGHT);
+        ICON_MAPPING.put("03d", WeatherContract.WeatherColumns.WeatherCode.CLOUDY);
+        ICON_MAPPING.put("03n", WeatherContract.WeatherColumns.WeatherCode.CLOUDY);
+        ICON_MAPPING.put("04d", WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_DAY);
+        ICON_MAPPING.put("04n", WeatherContract.WeatherColumns.WeatherCode.MOSTLY_CLOUDY_NIGHT);
+        ICON_MAPPING.put("09d", WeatherContract.WeatherColumns.WeatherCode.SHOWERS);
+        ICON_MAPPING.put("09n", WeatherContract.WeatherColumns.WeatherCode.SHOWERS);
+        ICON_MAPPING.put("10d", WeatherContract.WeatherColumns.WeatherCode.SCATTERED_SHOWERS);
+        ICON_MAPPING.put("10n", WeatherContract.WeatherColumns.WeatherCode.THUNDERSHOWER);
+        ICON_MAPPING.put("11d", WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS);
+        ICON_MAPPING.put("11n", WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS);
+        ICON_MAPPING.put("13d", WeatherContract.WeatherColumns.WeatherCode.SNOW);
+        ICON_MAPPING.put("13n", WeatherContract.WeatherColumns.WeatherCode.SNOW);
+        ICON_MAPPING.put("50d", WeatherContract.WeatherColumns.WeatherCode.HAZE);
+        ICON_MAPPING.put("50n", WeatherContract.WeatherColumns.WeatherCode.FOGGY);
+    }
+
+    public static int mapConditionIconToCode(String icon, int conditionId) {
+        // First, use condition ID for specific cases
+        switch (conditionId) {
+            // Thunderstorms
+            case 202:   // thunderstorm with heavy rain
+            case 232:   // thunderstorm with heavy drizzle
+            case 211:   // thunderstorm
+                return WeatherContract.WeatherColumns.WeatherCode.THUNDERSTORMS;
+            case 212:   // heavy thunderstorm
+                return WeatherContract.WeatherColumns.WeatherCode.HURRICANE;
+            case 221:   // ragged thunderstorm
+            case 231:   // thunderstorm with drizzle
+            case 201:   // thunderstorm with rain
+                return WeatherContract.WeatherColumns.WeatherCode.SCATTERED_THUNDERSTORMS;
+            case 230:   // thunderstorm with light drizzle
+            case 200:   // thunderstorm with light rain
+            case 210:   // light thunderstorm
+                return WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSTORMS;
+
+            // Drizzle
+            case 300:   // light intensity drizzle
+            case 301:   // drizzle
+            case 302:   // heavy intensity drizzle
+            case 310:   // light intensity drizzle rain
+            case 311:   // drizzle rain
+            case 312:   // heavy intensity drizzle rain
+            case 313:   // shower rain and drizzle
+            case 314:   // heavy shower rain and drizzle
+            case 321:   // shower drizzle
+                return WeatherContract.WeatherColumns.WeatherCode.DRIZZLE;
+
+            // Rain
+            case 500:   // light rain
+            case 501:   // moderate rain
+            case 520:   // light intensity shower rain
+            case 521:   // shower rain
+            case 531:   // ragged shower rain
+            case 502:   // heavy intensity rain
+            case 503:   // very heavy rain
+            case 504:   // extreme rain
+            case 522:   // heavy intensity shower rain
+                return WeatherContract.WeatherColumns.WeatherCode.SHOWERS;
+            case 511:   // freezing rain
+                return WeatherContract.WeatherColumns.WeatherCode.FREEZING_RAIN;
+
+            // Snow
+            case 600: case 620: // light snow
+                return WeatherContract.WeatherColumns.WeatherCode.LIGHT_SNOW_SHOWERS;
+            case 601: case 621: // snow
+                return WeatherContract.WeatherColumns.WeatherCode.SNOW;
+            case 602: case 622: // heavy snow
+                return WeatherContract.WeatherColumns.WeatherCode.HEAVY_SNOW;
+            case 611: case 612: // sleet
+                return WeatherContract.WeatherColumns.WeatherCode.SLEET;
+            case 615: case 616: // rain and snow
+                return WeatherContract.WeatherColumns.WeatherCode.MIXED_RAIN_AND_SNOW;
+
+            // Atmosphere
+            case 741:   // fog
+                return WeatherContract.WeatherColumns.WeatherCode.FOGGY;
+            case 711:   // smoke
+            case 762:   // volcanic ash
+                return WeatherContract.WeatherColumns.WeatherCode.SMOKY;
+            case 701:   // mist
+            case 721:   // haze
+                return WeatherContract.WeatherColumns.WeatherCode.HAZE;
+            case 731:   // sand/dust whirls
+            case 751:   // sand
+            case 761:   // dust
+                return WeatherContract.WeatherColumns.WeatherCode.DUST;
+            case 771:   // squalls
+                return WeatherContract.WeatherColumns.WeatherCode.BLUSTERY;
+            case 781:   // tornado
+                return WeatherContract.WeatherColumns.WeatherCode.TORNADO;
+
+            // Extreme
+            case 900:   // tornado
+                return WeatherContract.WeatherColumns.WeatherCode.TORNADO;
+            case 901:   // tropical storm
+                return WeatherContract.WeatherColumns.WeatherCode.TROPICAL_STORM;
+            case 902:   // hurricane
+                return WeatherContract.WeatherColumns.WeatherCode.HURRICANE;
+            case 903:   // cold
+                return WeatherContract.WeatherColumns.WeatherCode.COLD;
+            case 904:   // hot
+                return WeatherContract.WeatherColumns.WeatherCode.HOT;
+            case 905:   // windy
+                return WeatherContract.WeatherColumns.WeatherCode.WINDY;
+            case 906:   // hail
+                return WeatherContract.WeatherColumns.WeatherCode.HAIL;
+        }
+
+        // Not yet handled - Use generic icon mapping
+        Integer condition = ICON_MAPPING.get(icon);
+        if (condition != null) {
+            return condition;
+        }
+
+        return WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
+    }
+}
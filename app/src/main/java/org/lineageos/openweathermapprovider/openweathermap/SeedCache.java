@@ -0,0 +1,81 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.os.SystemClock;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+/**
+ * Current weather of the cities returned by a lookup, keyed like the {@link WeatherCache}. The
+ * first weather request for the city the user picks uses it instead of calling the current
+ * weather end point.
+ */
+class SeedCache extends ManagedLruCache<SeedCache.Entry> {
+
+    //Lookups older than this don't reflect the current weather anymore
+    private static final long MAX_SEED_AGE_MS = 10L * 60L * 1000L;
+    //Rough size of the current weather of a city
+    private static final int CITY_BYTES = 320;
+
+    static class Entry {
+        final long fetchedAt = SystemClock.elapsedRealtime();
+        final CurrentWeatherResponse currentWeather;
+        final int bytes;
+
+        Entry(String key, CurrentWeatherResponse currentWeather) {
+            this.currentWeather = currentWeather;
+            this.bytes = CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                    + CITY_BYTES + CacheManager.estimateBytes(currentWeather.getCityName());
+        }
+    }
+
+    SeedCache(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    /**
+     * Removes the seed, the following requests fetch the current weather again
+     * @return The current weather seeded for this key, null if there is none or it is too old
+     */
+    CurrentWeatherResponse take(String key) {
+        final Entry entry = removeEntry(key);
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() - entry.fetchedAt > MAX_SEED_AGE_MS) return null;
+        return entry.currentWeather;
+    }
+
+    void put(String key, CurrentWeatherResponse currentWeather) {
+        putEntry(key, new Entry(key, currentWeather));
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        return entry.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "lookup seeds";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        return REFETCH_COST_ONE_CALL;
+    }
+}
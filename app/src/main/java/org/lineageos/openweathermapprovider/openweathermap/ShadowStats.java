@@ -0,0 +1,191 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lineageos.weather.WeatherInfo;
+
+/**
+ * Aggregated comparison of the delivered results with the results of the shadow strategies run
+ * on a sample of the requests. Only the delivered results are ever handed out.
+ */
+class ShadowStats {
+
+    //Field differences below these are noise
+    private static final double TEMPERATURE_TOLERANCE = 0.5d;
+    private static final double HUMIDITY_TOLERANCE = 2d;
+    private static final double WIND_SPEED_TOLERANCE = 1d;
+    private static final double WIND_DIRECTION_TOLERANCE = 20d;
+
+    private static final String[] FIELDS = {
+        "city", "temperature", "condition", "humidity", "wind speed", "wind direction",
+        "today's high", "today's low", "forecast"
+    };
+    private static final int FIELD_CITY = 0;
+    private static final int FIELD_TEMPERATURE = 1;
+    private static final int FIELD_CONDITION = 2;
+    private static final int FIELD_HUMIDITY = 3;
+    private static final int FIELD_WIND_SPEED = 4;
+    private static final int FIELD_WIND_DIRECTION = 5;
+    private static final int FIELD_TODAYS_HIGH = 6;
+    private static final int FIELD_TODAYS_LOW = 7;
+    private static final int FIELD_FORECAST = 8;
+
+    /**
+     * Cost of producing one result
+     */
+    static class Cost {
+        final long latencyMs;
+        final long calls;
+        final long bytes;
+
+        Cost(long latencyMs, long calls, long bytes) {
+            this.latencyMs = latencyMs;
+            this.calls = calls;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class StrategyStats {
+        long samples;
+        long noResult;
+        long primaryLatencyMs;
+        long primaryCalls;
+        long primaryBytes;
+        long shadowLatencyMs;
+        long shadowCalls;
+        long shadowBytes;
+        final long[] differences = new long[FIELDS.length];
+        double temperatureError;
+    }
+
+    private final Map<String, StrategyStats> mStats = new TreeMap<>();
+
+    /**
+     * @param shadow The result of the shadow strategy, null if it could not produce one
+     */
+    void record(String strategy, WeatherInfo primary, Cost primaryCost, WeatherInfo shadow,
+            Cost shadowCost) {
+        synchronized (mStats) {
+            StrategyStats stats = mStats.get(strategy);
+            if (stats == null) {
+                stats = new StrategyStats();
+                mStats.put(strategy, stats);
+            }
+            stats.samples++;
+            stats.primaryLatencyMs += primaryCost.latencyMs;
+            stats.primaryCalls += primaryCost.calls;
+            stats.primaryBytes += primaryCost.bytes;
+            stats.shadowLatencyMs += shadowCost.latencyMs;
+            stats.shadowCalls += shadowCost.calls;
+            stats.shadowBytes += shadowCost.bytes;
+            if (shadow == null) {
+                stats.noResult++;
+                return;
+            }
+            compare(primary, shadow, stats.differences);
+            final double temperatureError = shadow.getTemperature() - primary.getTemperature();
+            if (!Double.isNaN(temperatureError)) {
+                stats.temperatureError += Math.abs(temperatureError);
+            }
+        }
+    }
+
+    private static void compare(WeatherInfo primary, WeatherInfo shadow, long[] differences) {
+        if (!primary.getCity().equals(shadow.getCity())) differences[FIELD_CITY]++;
+        if (differs(primary.getTemperature(), shadow.getTemperature(), TEMPERATURE_TOLERANCE)) {
+            differences[FIELD_TEMPERATURE]++;
+        }
+        if (primary.getConditionCode() != shadow.getConditionCode()) {
+            differences[FIELD_CONDITION]++;
+        }
+        if (differs(primary.getHumidity(), shadow.getHumidity(), HUMIDITY_TOLERANCE)) {
+            differences[FIELD_HUMIDITY]++;
+        }
+        if (differs(primary.getWindSpeed(), shadow.getWindSpeed(), WIND_SPEED_TOLERANCE)) {
+            differences[FIELD_WIND_SPEED]++;
+        }
+        //Directions wrap around
+        final double directionDelta = Math.abs(primary.getWindDirection()
+                - shadow.getWindDirection()) % 360d;
+        if (differs(Math.min(directionDelta, 360d - directionDelta), 0d,
+                WIND_DIRECTION_TOLERANCE)) {
+            differences[FIELD_WIND_DIRECTION]++;
+        }
+        if (differs(primary.getTodaysHigh(), shadow.getTodaysHigh(), TEMPERATURE_TOLERANCE)) {
+            differences[FIELD_TODAYS_HIGH]++;
+        }
+        if (differs(primary.getTodaysLow(), shadow.getTodaysLow(), TEMPERATURE_TOLERANCE)) {
+            differences[FIELD_TODAYS_LOW]++;
+        }
+        if (forecastDiffers(primary.getForecasts(), shadow.getForecasts())) {
+            differences[FIELD_FORECAST]++;
+        }
+    }
+
+    private static boolean differs(double a, double b, double tolerance) {
+        if (Double.isNaN(a) || Double.isNaN(b)) return Double.isNaN(a) != Double.isNaN(b);
+        return Math.abs(a - b) > tolerance;
+    }
+
+    private static boolean forecastDiffers(List<WeatherInfo.DayForecast> a,
+            List<WeatherInfo.DayForecast> b) {
+        if (a == null || b == null) return a != b;
+        if (a.size() != b.size()) return true;
+        for (int i = 0; i < a.size(); i++) {
+            final WeatherInfo.DayForecast dayA = a.get(i);
+            final WeatherInfo.DayForecast dayB = b.get(i);
+            if (dayA.getConditionCode() != dayB.getConditionCode()
+                    || differs(dayA.getHigh(), dayB.getHigh(), TEMPERATURE_TOLERANCE)
+                    || differs(dayA.getLow(), dayB.getLow(), TEMPERATURE_TOLERANCE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mStats) {
+            for (Map.Entry<String, StrategyStats> entry : mStats.entrySet()) {
+                final StrategyStats stats = entry.getValue();
+                final long samples = stats.samples;
+                pw.println("  shadow " + entry.getKey() + ": " + samples + " samples, "
+                        + stats.noResult + " without result");
+                pw.println("    delivered: " + stats.primaryLatencyMs / samples + "ms, "
+                        + (float) stats.primaryCalls / samples + " calls, "
+                        + stats.primaryBytes / samples + " bytes per request");
+                pw.println("    shadow: " + stats.shadowLatencyMs / samples + "ms, "
+                        + (float) stats.shadowCalls / samples + " calls, "
+                        + stats.shadowBytes / samples + " bytes per request");
+                final long compared = samples - stats.noResult;
+                if (compared == 0) continue;
+                StringBuilder differences = new StringBuilder("    differences:");
+                for (int i = 0; i < FIELDS.length; i++) {
+                    if (stats.differences[i] == 0) continue;
+                    differences.append(' ').append(FIELDS[i]).append(' ')
+                            .append(stats.differences[i] * 100 / compared).append('%');
+                }
+                pw.println(differences.append(", mean temperature error: ")
+                        .append((float) (stats.temperatureError / compared)));
+            }
+        }
+    }
+}
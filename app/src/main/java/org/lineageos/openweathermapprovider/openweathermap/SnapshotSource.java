@@ -0,0 +1,120 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.content.Context;
+
+import org.lineageos.openweathermapprovider.utils.FlightRecorder;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import lineageos.providers.WeatherContract;
+import lineageos.weather.WeatherInfo;
+
+/**
+ * Answers city requests from the {@link SnapshotStore} while its observations are recent enough.
+ * The bulk files only have the current weather, the latest forecast fetched for the city is
+ * reused.
+ */
+class SnapshotSource {
+
+    private static final double MPS_TO_KPH = 3.6;
+    private static final double MPS_TO_MPH = 2.23694;
+
+    private final SnapshotStore mSnapshotStore;
+    private final WeatherCache mWeatherCache;
+    private volatile long mMaxAgeMs = OpenWeatherMapService.DEFAULT_SNAPSHOT_MAX_AGE_MS;
+
+    SnapshotSource(Context context, WeatherCache weatherCache) {
+        mSnapshotStore = new SnapshotStore(context);
+        mWeatherCache = weatherCache;
+    }
+
+    /**
+     * Maps the store, this is a blocking call
+     */
+    void open() {
+        mSnapshotStore.open();
+    }
+
+    /**
+     * This is a blocking call
+     * @return The number of cities in the store, -1 if the file could not be ingested
+     */
+    int ingest(File bulkFile) {
+        return mSnapshotStore.ingest(bulkFile);
+    }
+
+    void setMaxAge(long maxAgeMs) {
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * @return The weather of the city built from the snapshot store, null if the store doesn't
+     * have a recent enough observation of the city
+     */
+    WeatherInfo query(String cityId, int tempUnit, String units) {
+        final SnapshotStore.Record record = mSnapshotStore.get(cityId);
+        if (record == null || Float.isNaN(record.temperature)
+                || System.currentTimeMillis() - record.observationTime * 1000L > mMaxAgeMs) {
+            return null;
+        }
+        FlightRecorder.record(FlightRecorder.EVENT_CACHE_HIT, FlightRecorder.CACHE_SNAPSHOT, 0);
+        final boolean metric = tempUnit == WeatherContract.WeatherColumns.TempUnit.CELSIUS;
+
+        //The bulk files are in Kelvin
+        WeatherInfo.Builder builder = new WeatherInfo.Builder(record.cityName,
+                ResponseMapper.sanitizeTemperature(record.temperature, metric), tempUnit)
+                        .setTimestamp(System.currentTimeMillis());
+        builder.setWeatherCondition(ResponseMapper.mapConditionIconToCode(record.icon,
+                record.conditionId));
+        if (!Float.isNaN(record.humidity)) {
+            builder.setHumidity(record.humidity);
+        }
+        if (!Float.isNaN(record.maxTemperature)) {
+            builder.setTodaysHigh(ResponseMapper.sanitizeTemperature(record.maxTemperature,
+                    metric));
+        }
+        if (!Float.isNaN(record.minTemperature)) {
+            builder.setTodaysLow(ResponseMapper.sanitizeTemperature(record.minTemperature,
+                    metric));
+        }
+        //The bulk files are in m/s
+        if (!Float.isNaN(record.windSpeed) && !Float.isNaN(record.windDirection)) {
+            if (metric) {
+                builder.setWind(record.windSpeed * MPS_TO_KPH, record.windDirection,
+                        WeatherContract.WeatherColumns.WindSpeedUnit.KPH);
+            } else {
+                builder.setWind(record.windSpeed * MPS_TO_MPH, record.windDirection,
+                        WeatherContract.WeatherColumns.WindSpeedUnit.MPH);
+            }
+        }
+
+        final WeatherInfo cachedWeather = mWeatherCache.get(
+                WeatherCache.getCityIdKey(cityId, units));
+        if (cachedWeather != null) {
+            builder.setForecast(cachedWeather.getForecasts());
+        }
+        return builder.build();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  snapshot max age: " + mMaxAgeMs + "ms");
+        mSnapshotStore.dump(pw);
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.content.Context;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local store of the current weather of every city of an OpenWeatherMap bulk file, so city
+ * requests can be answered without calling the server. The bulk file, gzipped JSON lines, is
+ * streamed into fixed size records and an open addressing table of the city IDs, both memory
+ * mapped, so neither ingesting nor serving depends on the number of cities held in memory.
+ *
+ * Every line of the bulk file has the layout
+ * {"city":{"id":..,"name":..,"coord":{..}},"time":..,"main":{..},"wind":{..},"weather":[..]}
+ * with the temperatures in Kelvin and the wind speed in m/s, they are stored as is.
+ */
+class SnapshotStore {
+
+    private static final String DIRECTORY = "snapshot";
+    private static final String RECORDS_FILE = "snapshot.dat";
+    private static final String INDEX_FILE = "snapshot.idx";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int INDEX_MAGIC = 0x4f57534e;
+    private static final int INDEX_VERSION = 1;
+    //magic, version, count, table size, newest observation, source modification time
+    private static final int INDEX_HEADER_BYTES = 32;
+
+    //city ID, observation time, 8 floats, condition ID, icon, name length and name
+    private static final int RECORD_BYTES = 96;
+    private static final int ICON_BYTES = 4;
+    private static final int NAME_BYTES = 39;
+
+    static class Record {
+        String cityName;
+        long observationTime;
+        float temperature;
+        float minTemperature;
+        float maxTemperature;
+        float humidity;
+        float windSpeed;
+        float windDirection;
+        int conditionId;
+        String icon;
+    }
+
+    //Gson model of a line of the bulk file
+    static class BulkLine {
+        public BulkLine() {}
+        private City city;
+        private long time;
+        private Main main;
+        private Wind wind;
+        private List<Weather> weather;
+
+        static class City {
+            public City() {}
+            private long id;
+            private String name;
+            private Coord coord;
+        }
+
+        static class Coord {
+            public Coord() {}
+            private float lat = Float.NaN;
+            private float lon = Float.NaN;
+        }
+
+        static class Main {
+            public Main() {}
+            private float temp = Float.NaN;
+            @SerializedName("temp_min")
+            private float minTemp = Float.NaN;
+            @SerializedName("temp_max")
+            private float maxTemp = Float.NaN;
+            private float humidity = Float.NaN;
+        }
+
+        static class Wind {
+            public Wind() {}
+            private float speed = Float.NaN;
+            private float deg = Float.NaN;
+        }
+
+        static class Weather {
+            public Weather() {}
+            private int id;
+            private String icon;
+        }
+    }
+
+    private final File mDirectory;
+    private final Gson mGson = new Gson();
+    //Ingestions share the temporary files
+    private final Object mIngestLock = new Object();
+    private ByteBuffer mRecords;
+    private ByteBuffer mIndex;
+    private int mCount;
+    private int mTableSize;
+    private long mNewestObservation;
+    private long mSourceModified;
+    private long mHits;
+    private long mMisses;
+
+    SnapshotStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    /**
+     * Maps the store ingested last, if any. This is a blocking call and should never be called
+     * from the UI thread
+     */
+    synchronized void open() {
+        mRecords = null;
+        mIndex = null;
+        mCount = 0;
+        final File records = new File(mDirectory, RECORDS_FILE);
+        final File index = new File(mDirectory, INDEX_FILE);
+        if (!records.exists() || !index.exists()) return;
+        try {
+            final ByteBuffer indexBuffer = map(index);
+            final ByteBuffer recordsBuffer = map(records);
+            if (indexBuffer.getInt(0) != INDEX_MAGIC || indexBuffer.getInt(4) != INDEX_VERSION) {
+                Logging.logw("Ignoring snapshot store with unknown layout");
+                return;
+            }
+            final int count = indexBuffer.getInt(8);
+            final int tableSize = indexBuffer.getInt(12);
+            if (recordsBuffer.capacity() != (long) count * RECORD_BYTES
+                    || indexBuffer.capacity() != INDEX_HEADER_BYTES + tableSize * 4L) {
+                Logging.logw("Ignoring truncated snapshot store");
+                return;
+            }
+            mNewestObservation = indexBuffer.getLong(16);
+            mSourceModified = indexBuffer.getLong(24);
+            mCount = count;
+            mTableSize = tableSize;
+            mRecords = recordsBuffer;
+            mIndex = indexBuffer;
+        } catch (IOException e) {
+            Logging.logw("Unable to map snapshot store ", e);
+        }
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+    }
+
+    private synchronized boolean isIngestedFrom(File bulkFile) {
+        return mRecords != null && mSourceModified == bulkFile.lastModified();
+    }
+
+    /**
+     * Replaces the store with the content of a gzipped bulk file, unless it was already ingested
+     * from this version of the file. The store in use is left untouched if the file can't be
+     * read. This is a blocking call and should never be called
+     * from the UI thread
+     * @return The number of cities ingested, -1 on failure
+     */
+    int ingest(File bulkFile) {
+        synchronized (mIngestLock) {
+            if (isIngestedFrom(bulkFile)) return mCount;
+            return ingestLocked(bulkFile);
+        }
+    }
+
+    private int ingestLocked(File bulkFile) {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return -1;
+        final File tempRecords = new File(mDirectory, RECORDS_FILE + TEMP_SUFFIX);
+        final File tempIndex = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+        try {
+            final long[] newestObservation = new long[1];
+            final int count = writeRecords(bulkFile, tempRecords, newestObservation);
+            writeIndex(tempRecords, tempIndex, count, newestObservation[0],
+                    bulkFile.lastModified());
+            synchronized (this) {
+                if (!tempRecords.renameTo(new File(mDirectory, RECORDS_FILE))
+                        || !tempIndex.renameTo(new File(mDirectory, INDEX_FILE))) {
+                    throw new IOException("Unable to replace the snapshot store");
+                }
+                open();
+            }
+            return count;
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            Logging.logw("Unable to ingest snapshot ", e);
+            tempRecords.delete();
+            tempIndex.delete();
+            return -1;
+        }
+    }
+
+    private int writeRecords(File bulkFile, File records, long[] newestObservation)
+            throws IOException {
+        int count = 0;
+        final byte[] icon = new byte[ICON_BYTES];
+        final byte[] name = new byte[NAME_BYTES];
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new GZIPInputStream(
+                new BufferedInputStream(new FileInputStream(bulkFile))), StandardCharsets.UTF_8));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(records)))) {
+            //One JSON object per line
+            reader.setLenient(true);
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                final BulkLine line = mGson.fromJson(reader, BulkLine.class);
+                if (line == null || line.city == null || line.city.name == null
+                        || line.main == null || Float.isNaN(line.main.temp)) {
+                    continue;
+                }
+                final BulkLine.Weather weather = line.weather != null && !line.weather.isEmpty()
+                        ? line.weather.get(0) : null;
+                out.writeLong(line.city.id);
+                out.writeLong(line.time);
+                out.writeFloat(line.city.coord != null ? line.city.coord.lat : Float.NaN);
+                out.writeFloat(line.city.coord != null ? line.city.coord.lon : Float.NaN);
+                out.writeFloat(line.main.temp);
+                out.writeFloat(line.main.minTemp);
+                out.writeFloat(line.main.maxTemp);
+                out.writeFloat(line.main.humidity);
+                out.writeFloat(line.wind != null ? line.wind.speed : Float.NaN);
+                out.writeFloat(line.wind != null ? line.wind.deg : Float.NaN);
+                out.writeInt(weather != null ? weather.id : 0);
+                out.write(truncate(weather != null ? weather.icon : null, icon), 0, ICON_BYTES);
+                final int nameLength = encode(line.city.name, name);
+                out.writeByte(nameLength);
+                out.write(name, 0, NAME_BYTES);
+                newestObservation[0] = Math.max(newestObservation[0], line.time);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] truncate(String value, byte[] buffer) {
+        Arrays.fill(buffer, (byte) 0);
+        if (value != null) {
+            final byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(bytes, 0, buffer, 0, Math.min(bytes.length, buffer.length));
+        }
+        return buffer;
+    }
+
+    /**
+     * @return The number of bytes used, the name is cut on a character boundary if too long
+     */
+    private static int encode(String value, byte[] buffer) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, buffer.length);
+        if (length < bytes.length) {
+            while (length > 0 && (bytes[length] & 0xc0) == 0x80) length--;
+        }
+        System.arraycopy(bytes, 0, buffer, 0, length);
+        return length;
+    }
+
+    private static void writeIndex(File records, File index, int count, long newestObservation,
+            long sourceModified) throws IOException {
+        //At most half full, so the probes stay short
+        int tableSize = 2;
+        while (tableSize < count * 2) tableSize <<= 1;
+        try (RandomAccessFile recordsFile = new RandomAccessFile(records, "r");
+             RandomAccessFile indexFile = new RandomAccessFile(index, "rw")) {
+            final ByteBuffer recordsBuffer = recordsFile.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, recordsFile.length());
+            final long indexBytes = INDEX_HEADER_BYTES + tableSize * 4L;
+            indexFile.setLength(indexBytes);
+            final MappedByteBuffer indexBuffer = indexFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+            indexBuffer.putInt(0, INDEX_MAGIC);
+            indexBuffer.putInt(4, INDEX_VERSION);
+            indexBuffer.putInt(8, count);
+            indexBuffer.putInt(12, tableSize);
+            indexBuffer.putLong(16, newestObservation);
+            indexBuffer.putLong(24, sourceModified);
+            for (int i = 0; i < count; i++) {
+                final long cityId = recordsBuffer.getLong(i * RECORD_BYTES);
+                //Slots hold the record number plus one, a later line of a city replaces it
+                int slot = hash(cityId) & (tableSize - 1);
+                while (true) {
+                    final int position = INDEX_HEADER_BYTES + slot * 4;
+                    final int entry = indexBuffer.getInt(position);
+                    if (entry == 0 || recordsBuffer.getLong((entry - 1) * RECORD_BYTES)
+                            == cityId) {
+                        indexBuffer.putInt(position, i + 1);
+                        break;
+                    }
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+            }
+            indexBuffer.force();
+        }
+    }
+
+    private static int hash(long cityId) {
+        final long h = cityId * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return The current weather of the city, null if the store doesn't have it
+     */
+    synchronized Record get(String cityId) {
+        if (mRecords == null) return null;
+        final long id;
+        try {
+            id = Long.parseLong(cityId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        int slot = hash(id) & (mTableSize - 1);
+        while (true) {
+            final int entry = mIndex.getInt(INDEX_HEADER_BYTES + slot * 4);
+            if (entry == 0) {
+                mMisses++;
+                return null;
+            }
+            final int offset = (entry - 1) * RECORD_BYTES;
+            if (mRecords.getLong(offset) == id) {
+                mHits++;
+                return readRecord(offset);
+            }
+            slot = (slot + 1) & (mTableSize - 1);
+        }
+    }
+
+    private Record readRecord(int offset) {
+        Record record = new Record();
+        record.observationTime = mRecords.getLong(offset + 8);
+        record.temperature = mRecords.getFloat(offset + 24);
+        record.minTemperature = mRecords.getFloat(offset + 28);
+        record.maxTemperature = mRecords.getFloat(offset + 32);
+        record.humidity = mRecords.getFloat(offset + 36);
+        record.windSpeed = mRecords.getFloat(offset + 40);
+        record.windDirection = mRecords.getFloat(offset + 44);
+        record.conditionId = mRecords.getInt(offset + 48);
+        final byte[] icon = new byte[ICON_BYTES];
+        for (int i = 0; i < ICON_BYTES; i++) icon[i] = mRecords.get(offset + 52 + i);
+        int iconLength = 0;
+        while (iconLength < ICON_BYTES && icon[iconLength] != 0) iconLength++;
+        record.icon = new String(icon, 0, iconLength, StandardCharsets.US_ASCII);
+        final int nameLength = mRecords.get(offset + 56) & 0xff;
+        final byte[] name = new byte[nameLength];
+        for (int i = 0; i < nameLength; i++) name[i] = mRecords.get(offset + 57 + i);
+        record.cityName = new String(name, StandardCharsets.UTF_8);
+        return record;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        if (mRecords == null) return;
+        pw.println("  snapshot store: " + mCount + " cities, newest observation "
+                + mNewestObservation + ", " + mHits + " hits, " + mMisses + " misses");
+    }
+}
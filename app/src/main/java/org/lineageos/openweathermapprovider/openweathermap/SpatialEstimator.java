@@ -0,0 +1,228 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.location.Location;
+
+import org.lineageos.openweathermapprovider.utils.FlightRecorder;
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import lineageos.providers.WeatherContract;
+import lineageos.weather.WeatherInfo;
+
+/**
+ * Estimates the weather of a location from the cached results surrounding it. Temperatures,
+ * humidity and wind are inverse distance weighted, the condition and forecast are the ones of
+ * the nearest neighbour. An estimate is only made when the neighbours surround the location and
+ * agree with each other.
+ */
+class SpatialEstimator {
+
+    private static final int MIN_NEIGHBOURS = 3;
+    //The neighbours must be spread over this many quadrants around the location, so we
+    //interpolate rather than extrapolate
+    private static final int MIN_QUADRANTS = 3;
+    private static final double MAX_TEMPERATURE_SPREAD_CELSIUS = 3d;
+    //Share of the neighbours that must report the same condition as the nearest one
+    private static final double MIN_CONDITION_AGREEMENT = 0.5d;
+    //Avoids dividing by zero for a neighbour right at the location
+    private static final double MIN_DISTANCE_METERS = 1d;
+
+    private final WeatherCache mWeatherCache;
+    private final GeoCityCache mGeoCityCache;
+    private volatile boolean mEnabled;
+    private volatile float mRadiusMeters
+            = OpenWeatherMapService.DEFAULT_INTERPOLATION_RADIUS_METERS;
+    private volatile long mMaxAgeMs = OpenWeatherMapService.DEFAULT_INTERPOLATION_MAX_AGE_MS;
+    //Estimates handed out, so they can be told apart from fetched results
+    private final Set<WeatherInfo> mEstimates
+            = Collections.newSetFromMap(new WeakHashMap<WeatherInfo, Boolean>());
+
+    SpatialEstimator(WeatherCache weatherCache, GeoCityCache geoCityCache) {
+        mWeatherCache = weatherCache;
+        mGeoCityCache = geoCityCache;
+    }
+
+    /**
+     * @param radiusMeters Maximum distance of the cached results taken into account
+     * @param maxAgeMs Maximum age of the cached results taken into account
+     */
+    void setEnabled(boolean enabled, float radiusMeters, long maxAgeMs) {
+        mRadiusMeters = radiusMeters;
+        mMaxAgeMs = maxAgeMs;
+        mEnabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return true if the weather info was handed out as an estimate
+     */
+    boolean isEstimate(WeatherInfo weatherInfo) {
+        synchronized (mEstimates) {
+            return mEstimates.contains(weatherInfo);
+        }
+    }
+
+    /**
+     * A recent result fetched for the location itself beats any estimate
+     * @return The weather fetched for the location within the max age, otherwise the estimate
+     * made from the results around it, null if there is neither
+     */
+    WeatherInfo query(Location location, String units) {
+        final WeatherInfo cachedWeather = getRecentWeather(location, units);
+        if (cachedWeather != null) {
+            Logging.logd("Recent weather cached for the location");
+            return cachedWeather;
+        }
+        final WeatherInfo estimate = estimate(mWeatherCache.getNeighbours(location, units,
+                mRadiusMeters, mMaxAgeMs));
+        FlightRecorder.record(estimate != null ? FlightRecorder.EVENT_CACHE_HIT
+                : FlightRecorder.EVENT_CACHE_MISS, FlightRecorder.CACHE_ESTIMATE, 0);
+        if (estimate != null) {
+            Logging.logd("Estimated weather from cached neighbours");
+            synchronized (mEstimates) {
+                mEstimates.add(estimate);
+            }
+        }
+        return estimate;
+    }
+
+    private WeatherInfo getRecentWeather(Location location, String units) {
+        WeatherInfo weatherInfo = null;
+        final String cityId = mGeoCityCache.getCityId(location);
+        if (cityId != null) {
+            weatherInfo = mWeatherCache.get(WeatherCache.getCityIdKey(cityId, units), mMaxAgeMs);
+        }
+        if (weatherInfo == null) {
+            weatherInfo = mWeatherCache.get(WeatherCache.getGeoKey(location.getLatitude(),
+                    location.getLongitude(), units), mMaxAgeMs);
+        }
+        return weatherInfo == null || isEstimate(weatherInfo) ? null : weatherInfo;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("  spatial interpolation: " + mEnabled + ", radius: " + mRadiusMeters + "m"
+                + ", max age: " + mMaxAgeMs + "ms");
+    }
+
+    /**
+     * @param neighbours The cached results around the location, nearest first
+     * @return The estimate, null if the neighbours are not dense or consistent enough
+     */
+    static WeatherInfo estimate(List<WeatherCache.Neighbour> neighbours) {
+        if (neighbours.size() < MIN_NEIGHBOURS) return null;
+
+        boolean[] quadrants = new boolean[4];
+        int quadrantCount = 0;
+        double minTemperature = Double.NaN;
+        double maxTemperature = Double.NaN;
+        final int condition = neighbours.get(0).weatherInfo.getConditionCode();
+        int agreeing = 0;
+        for (WeatherCache.Neighbour neighbour : neighbours) {
+            final int quadrant = (int) (((neighbour.bearing + 360f) % 360f) / 90f) % 4;
+            if (!quadrants[quadrant]) {
+                quadrants[quadrant] = true;
+                quadrantCount++;
+            }
+            final double temperature = neighbour.weatherInfo.getTemperature();
+            if (Double.isNaN(minTemperature) || temperature < minTemperature) {
+                minTemperature = temperature;
+            }
+            if (Double.isNaN(maxTemperature) || temperature > maxTemperature) {
+                maxTemperature = temperature;
+            }
+            if (neighbour.weatherInfo.getConditionCode() == condition) agreeing++;
+        }
+        if (quadrantCount < MIN_QUADRANTS) return null;
+
+        final WeatherInfo nearest = neighbours.get(0).weatherInfo;
+        double spread = maxTemperature - minTemperature;
+        if (nearest.getTemperatureUnit() == WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT) {
+            spread /= 1.8d;
+        }
+        if (spread > MAX_TEMPERATURE_SPREAD_CELSIUS
+                || agreeing < MIN_CONDITION_AGREEMENT * neighbours.size()) {
+            return null;
+        }
+
+        WeightedAverage temperature = new WeightedAverage();
+        WeightedAverage humidity = new WeightedAverage();
+        WeightedAverage todaysHigh = new WeightedAverage();
+        WeightedAverage todaysLow = new WeightedAverage();
+        WeightedAverage windSpeed = new WeightedAverage();
+        //Wind directions are averaged as vectors so 350 and 10 degrees average to 0
+        WeightedAverage windX = new WeightedAverage();
+        WeightedAverage windY = new WeightedAverage();
+        long oldestTimestamp = Long.MAX_VALUE;
+        for (WeatherCache.Neighbour neighbour : neighbours) {
+            final WeatherInfo weatherInfo = neighbour.weatherInfo;
+            final double distance = Math.max(MIN_DISTANCE_METERS, neighbour.distanceMeters);
+            final double weight = 1d / (distance * distance);
+            temperature.add(weatherInfo.getTemperature(), weight);
+            humidity.add(weatherInfo.getHumidity(), weight);
+            todaysHigh.add(weatherInfo.getTodaysHigh(), weight);
+            todaysLow.add(weatherInfo.getTodaysLow(), weight);
+            if (weatherInfo.getWindSpeedUnit() == nearest.getWindSpeedUnit()) {
+                windSpeed.add(weatherInfo.getWindSpeed(), weight);
+                final double direction = Math.toRadians(weatherInfo.getWindDirection());
+                windX.add(Math.cos(direction), weight);
+                windY.add(Math.sin(direction), weight);
+            }
+            oldestTimestamp = Math.min(oldestTimestamp, weatherInfo.getTimestamp());
+        }
+
+        //Report the age of the oldest data point the estimate is made of
+        WeatherInfo.Builder builder = new WeatherInfo.Builder(nearest.getCity(),
+                temperature.get(), nearest.getTemperatureUnit())
+                .setTimestamp(oldestTimestamp)
+                .setWeatherCondition(condition)
+                .setForecast(nearest.getForecasts());
+        if (!Double.isNaN(humidity.get())) builder.setHumidity(humidity.get());
+        if (!Double.isNaN(todaysHigh.get())) builder.setTodaysHigh(todaysHigh.get());
+        if (!Double.isNaN(todaysLow.get())) builder.setTodaysLow(todaysLow.get());
+        if (!Double.isNaN(windSpeed.get()) && !Double.isNaN(windX.get())) {
+            final double direction = Math.toDegrees(Math.atan2(windY.get(), windX.get()));
+            builder.setWind(windSpeed.get(), (direction + 360d) % 360d,
+                    nearest.getWindSpeedUnit());
+        }
+        return builder.build();
+    }
+
+    private static class WeightedAverage {
+        private double mSum;
+        private double mWeights;
+
+        void add(double value, double weight) {
+            if (Double.isNaN(value)) return;
+            mSum += value * weight;
+            mWeights += weight;
+        }
+
+        double get() {
+            return mWeights > 0d ? mSum / mWeights : Double.NaN;
+        }
+    }
+}
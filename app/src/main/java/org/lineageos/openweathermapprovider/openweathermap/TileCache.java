@@ -0,0 +1,133 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+import java.util.List;
+
+/**
+ * Current weather of every city within lat/lon tiles, fetched with a single bounding box call
+ * so nearby geo requests can be answered locally.
+ */
+class TileCache extends ManagedLruCache<TileCache.Tile> {
+
+    //~55km at the equator, enough to cover a metro area
+    static final double TILE_SIZE_DEGREES = 0.5d;
+    //Past this, the current weather of the tile needs to be fetched again
+    private static final long MAX_TILE_AGE_MS = 20L * 60L * 1000L;
+    //A location further than this from every city of the tile is not served from the tile
+    private static final float MAX_CITY_DISTANCE_METERS = 10f * 1000f;
+    //Rough size of the current weather of a city
+    private static final int CITY_BYTES = 320;
+
+    static class Tile {
+        final long fetchedAt = SystemClock.elapsedRealtime();
+        final List<CurrentWeatherResponse> cities;
+        final int bytes;
+
+        Tile(String key, List<CurrentWeatherResponse> cities) {
+            this.cities = cities;
+            int bytes = CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key);
+            for (CurrentWeatherResponse city : cities) {
+                bytes += CITY_BYTES + CacheManager.estimateBytes(city.getCityName());
+            }
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The current weather of the nearest city, null if none is close enough
+         */
+        CurrentWeatherResponse getNearestCity(Location location) {
+            CurrentWeatherResponse nearest = null;
+            float nearestDistance = MAX_CITY_DISTANCE_METERS;
+            float[] distance = new float[1];
+            for (CurrentWeatherResponse city : cities) {
+                if (city.getCityId() == null || Double.isNaN(city.getLatitude())
+                        || Double.isNaN(city.getLongitude())) {
+                    continue;
+                }
+                Location.distanceBetween(location.getLatitude(), location.getLongitude(),
+                        city.getLatitude(), city.getLongitude(), distance);
+                if (distance[0] <= nearestDistance) {
+                    nearest = city;
+                    nearestDistance = distance[0];
+                }
+            }
+            return nearest;
+        }
+    }
+
+    TileCache(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    /**
+     * @return The bounding box of the tile containing the location, formatted for the bounding
+     * box end point
+     */
+    static String getBoundingBox(Location location, int zoom) {
+        final double left = Math.floor(location.getLongitude() / TILE_SIZE_DEGREES)
+                * TILE_SIZE_DEGREES;
+        final double bottom = Math.floor(location.getLatitude() / TILE_SIZE_DEGREES)
+                * TILE_SIZE_DEGREES;
+        return left + "," + bottom + "," + (left + TILE_SIZE_DEGREES) + ","
+                + (bottom + TILE_SIZE_DEGREES) + "," + zoom;
+    }
+
+    private static String getKey(Location location, String units) {
+        return (long) Math.floor(location.getLatitude() / TILE_SIZE_DEGREES) + ","
+                + (long) Math.floor(location.getLongitude() / TILE_SIZE_DEGREES) + ":" + units;
+    }
+
+    /**
+     * @return The tile containing the location, null if it has not been fetched recently
+     */
+    Tile get(Location location, String units) {
+        final Tile tile = getEntry(getKey(location, units));
+        if (tile == null || SystemClock.elapsedRealtime() - tile.fetchedAt > MAX_TILE_AGE_MS) {
+            return null;
+        }
+        return tile;
+    }
+
+    Tile put(Location location, String units, List<CurrentWeatherResponse> cities) {
+        final String key = getKey(location, units);
+        final Tile tile = new Tile(key, cities);
+        putEntry(key, tile);
+        return tile;
+    }
+
+    @Override
+    protected int sizeOf(String key, Tile tile) {
+        return tile.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "tiles";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        return REFETCH_COST_ONE_CALL;
+    }
+}
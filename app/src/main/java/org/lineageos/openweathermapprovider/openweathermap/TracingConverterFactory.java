@@ -0,0 +1,71 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.os.Trace;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Wraps the response body conversion of another factory in a trace section, so the parsing
+ * time shows up separately from the network time in systrace captures.
+ */
+class TracingConverterFactory extends Converter.Factory {
+
+    private final Converter.Factory mDelegate;
+
+    TracingConverterFactory(Converter.Factory delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations,
+            Retrofit retrofit) {
+        final Converter<ResponseBody, ?> converter
+                = mDelegate.responseBodyConverter(type, annotations, retrofit);
+        if (converter == null) return null;
+
+        final String section = "OWM:parse " + (type instanceof Class
+                ? ((Class<?>) type).getSimpleName() : type.toString());
+        return new Converter<ResponseBody, Object>() {
+            @Override
+            public Object convert(ResponseBody value) throws IOException {
+                Trace.beginSection(section);
+                try {
+                    return converter.convert(value);
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        };
+    }
+
+    @Override
+    public Converter<?, RequestBody> requestBodyConverter(Type type,
+            Annotation[] parameterAnnotations, Annotation[] methodAnnotations,
+            Retrofit retrofit) {
+        return mDelegate.requestBodyConverter(type, parameterAnnotations, methodAnnotations,
+                retrofit);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import org.lineageos.openweathermapprovider.utils.Logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lineageos.weather.RequestInfo;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Opt-in recorder of the requests received by the provider and of the HTTP traffic they
+ * generate, so the request mix seen in the field can be replayed against a stand-in server.
+ * The log is made of one record per line, with fields separated by spaces:
+ *
+ * R time type argument: a request, the argument being "lat,lon" for geo requests, the city ID
+ * for weather location requests and the URL encoded city name for lookups
+ * H time path code duration size body: an HTTP call, the body being the Base64 encoded
+ * response of successful calls or "-"
+ *
+ * Times are in milliseconds since boot. The log is rotated once it reaches {@link #MAX_LOG_BYTES}
+ * and only the previous log is kept. The records are written by a background thread, requests
+ * are recorded from the main thread.
+ */
+public class TrafficRecorder implements Interceptor {
+
+    public static final String LOG_DIRECTORY = "traffic";
+    public static final String LOG_FILE = "traffic.log";
+    public static final String ROTATED_LOG_FILE = "traffic.log.1";
+
+    public static final String RECORD_REQUEST = "R";
+    public static final String RECORD_HTTP = "H";
+    public static final String NO_BODY = "-";
+
+    private static final long MAX_LOG_BYTES = 256L * 1024L;
+    //Larger bodies are not worth the space, the replay falls back to the fixtures
+    private static final long MAX_BODY_BYTES = 32L * 1024L;
+
+    private final File mDirectory;
+    //Only accessed from the executor
+    private Writer mWriter;
+    private long mLogBytes;
+    private volatile boolean mEnabled;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    TrafficRecorder(Context context) {
+        mDirectory = new File(context.getFilesDir(), LOG_DIRECTORY);
+    }
+
+    void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeLog();
+                }
+            });
+        }
+    }
+
+    /**
+     * Records a request received by the provider, if recording is enabled
+     */
+    public void recordRequest(RequestInfo requestInfo) {
+        if (!mEnabled) return;
+        final String argument;
+        switch (requestInfo.getRequestType()) {
+            case RequestInfo.TYPE_WEATHER_BY_GEO_LOCATION_REQ:
+                //~1km is enough to reproduce the traffic shape
+                final Location location = requestInfo.getLocation();
+                argument = String.format(Locale.US, "%.2f,%.2f", location.getLatitude(),
+                        location.getLongitude());
+                break;
+            case RequestInfo.TYPE_WEATHER_BY_WEATHER_LOCATION_REQ:
+                argument = requestInfo.getWeatherLocation().getCityId();
+                break;
+            case RequestInfo.TYPE_LOOKUP_CITY_NAME_REQ:
+                argument = encode(requestInfo.getCityName());
+                break;
+            default:
+                argument = NO_BODY;
+                break;
+        }
+        write(RECORD_REQUEST + " " + SystemClock.elapsedRealtime() + " "
+                + requestInfo.getRequestType() + " " + argument);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        if (!mEnabled) return chain.proceed(chain.request());
+
+        final long start = SystemClock.elapsedRealtime();
+        final Response response = chain.proceed(chain.request());
+        final long duration = SystemClock.elapsedRealtime() - start;
+
+        String body = NO_BODY;
+        long size = response.body().contentLength();
+        if (response.code() == 200) {
+            //The length is unknown for chunked bodies, read one byte past the limit to find out
+            //if the body fits. Peeking leaves the body to the caller
+            final byte[] bytes = response.peekBody(MAX_BODY_BYTES + 1).bytes();
+            if (bytes.length <= MAX_BODY_BYTES) {
+                size = bytes.length;
+                body = Base64.encodeToString(bytes, Base64.NO_WRAP);
+            }
+        }
+        write(RECORD_HTTP + " " + start + " " + chain.request().url().encodedPath() + " "
+                + response.code() + " " + duration + " " + size + " " + body);
+        return response;
+    }
+
+    private void write(final String record) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeLog(record);
+            }
+        });
+    }
+
+    private void writeLog(String record) {
+        if (!mEnabled) return;
+        try {
+            if (mWriter == null) openLog();
+            mWriter.write(record);
+            mWriter.write('\n');
+            mWriter.flush();
+            mLogBytes += record.length() + 1;
+            if (mLogBytes >= MAX_LOG_BYTES) {
+                closeLog();
+                final File log = new File(mDirectory, LOG_FILE);
+                if (!log.renameTo(new File(mDirectory, ROTATED_LOG_FILE))) {
+                    Logging.logw("Failed to rotate ", log);
+                }
+            }
+        } catch (IOException e) {
+            Logging.logw("Failed to record traffic ", e);
+            closeLog();
+        }
+    }
+
+    private void openLog() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        final File log = new File(mDirectory, LOG_FILE);
+        mLogBytes = log.length();
+        mWriter = new OutputStreamWriter(new FileOutputStream(log, true),
+                StandardCharsets.US_ASCII);
+    }
+
+    private void closeLog() {
+        if (mWriter == null) return;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            //Nothing we can do
+        }
+        mWriter = null;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            //UTF-8 is always supported
+            return NO_BODY;
+        }
+    }
+}
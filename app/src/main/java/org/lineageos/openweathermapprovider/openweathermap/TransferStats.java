@@ -0,0 +1,145 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Network interceptor keeping track of the number of requests and response bytes received per
+ * end point. Being a network interceptor, it sees the bodies before they are decompressed.
+ */
+class TransferStats implements Interceptor {
+
+    private static class EndpointStats {
+        long requests;
+        long bytes;
+        String encoding;
+    }
+
+    /**
+     * Requests and bytes of the synchronous calls made by one thread
+     */
+    static class Meter {
+        long requests;
+        long bytes;
+    }
+
+    private final Map<String, EndpointStats> mStats = new TreeMap<>();
+    private final ThreadLocal<Meter> mMeter = new ThreadLocal<>();
+
+    /**
+     * Meters the calls executed by the current thread, until {@link #stopMeter()}
+     */
+    void startMeter(Meter meter) {
+        mMeter.set(meter);
+    }
+
+    void stopMeter() {
+        mMeter.remove();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Response response = chain.proceed(chain.request());
+        final String endpoint = chain.request().url().encodedPath();
+        final Meter meter = mMeter.get();
+        if (meter != null) meter.requests++;
+        synchronized (mStats) {
+            EndpointStats stats = getStats(endpoint);
+            stats.requests++;
+            stats.encoding = response.header("Content-Encoding", "identity");
+        }
+        if (response.body() == null) return response;
+        return response.newBuilder()
+                .body(new CountingResponseBody(response.body(), endpoint, meter))
+                .build();
+    }
+
+    private EndpointStats getStats(String endpoint) {
+        EndpointStats stats = mStats.get(endpoint);
+        if (stats == null) {
+            stats = new EndpointStats();
+            mStats.put(endpoint, stats);
+        }
+        return stats;
+    }
+
+    private void onBytesRead(String endpoint, long bytes) {
+        synchronized (mStats) {
+            getStats(endpoint).bytes += bytes;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mStats) {
+            for (Map.Entry<String, EndpointStats> entry : mStats.entrySet()) {
+                final EndpointStats stats = entry.getValue();
+                pw.println("  " + entry.getKey() + ": " + stats.requests + " requests, "
+                        + stats.bytes + " bytes ("
+                        + (stats.requests > 0 ? stats.bytes / stats.requests : 0)
+                        + " per request, " + stats.encoding + ")");
+            }
+        }
+    }
+
+    private class CountingResponseBody extends ResponseBody {
+        private final ResponseBody mDelegate;
+        private final BufferedSource mSource;
+
+        CountingResponseBody(ResponseBody delegate, final String endpoint, final Meter meter) {
+            mDelegate = delegate;
+            mSource = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    final long read = super.read(sink, byteCount);
+                    if (read > 0) {
+                        onBytesRead(endpoint, read);
+                        if (meter != null) meter.bytes += read;
+                    }
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mDelegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return mDelegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return mSource;
+        }
+    }
+}
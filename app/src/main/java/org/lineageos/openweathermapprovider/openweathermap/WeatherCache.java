@@ -0,0 +1,163 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.openweathermap;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import org.lineageos.openweathermapprovider.cache.CacheManager;
+import org.lineageos.openweathermapprovider.cache.ManagedLruCache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lineageos.weather.WeatherInfo;
+
+/**
+ * In memory cache of the latest weather info processed for each location, keyed by the city ID
+ * or lat/lon cell and the units it was requested in.
+ */
+class WeatherCache extends ManagedLruCache<WeatherCache.Entry> {
+
+    //Rough size of a weather info object and of each of its day forecasts
+    private static final int WEATHER_INFO_BYTES = 256;
+    private static final int DAY_FORECAST_BYTES = 96;
+
+    static class Entry {
+        final WeatherInfo weatherInfo;
+        final String units;
+        final double latitude;
+        final double longitude;
+        final long fetchedAt = SystemClock.elapsedRealtime();
+        final int bytes;
+
+        Entry(String key, String units, WeatherInfo weatherInfo, double latitude,
+                double longitude) {
+            this.weatherInfo = weatherInfo;
+            this.units = units;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.bytes = CacheManager.ENTRY_OVERHEAD_BYTES + CacheManager.estimateBytes(key)
+                    + estimateBytes(weatherInfo);
+        }
+    }
+
+    /**
+     * @return A rough estimate of the memory retained by the weather info and its forecast
+     */
+    static int estimateBytes(WeatherInfo weatherInfo) {
+        return WEATHER_INFO_BYTES + CacheManager.estimateBytes(weatherInfo.getCity())
+                + (weatherInfo.getForecasts() != null
+                        ? weatherInfo.getForecasts().size() * DAY_FORECAST_BYTES : 0);
+    }
+
+    /**
+     * A cached result close to a given location
+     */
+    static class Neighbour {
+        final WeatherInfo weatherInfo;
+        final float distanceMeters;
+        //Initial bearing from the location to the neighbour, in degrees
+        final float bearing;
+
+        Neighbour(WeatherInfo weatherInfo, float distanceMeters, float bearing) {
+            this.weatherInfo = weatherInfo;
+            this.distanceMeters = distanceMeters;
+            this.bearing = bearing;
+        }
+    }
+
+    WeatherCache(CacheManager cacheManager) {
+        super(cacheManager);
+    }
+
+    static String getCityIdKey(String cityId, String units) {
+        return "id:" + cityId + ":" + units;
+    }
+
+    static String getGeoKey(double latitude, double longitude, String units) {
+        return "geo:" + GeoCityCache.getCellKey(latitude, longitude) + ":" + units;
+    }
+
+    WeatherInfo get(String key) {
+        final Entry entry = getEntry(key);
+        return entry != null ? entry.weatherInfo : null;
+    }
+
+    /**
+     * @param maxAgeMs Maximum age of the weather info
+     * @return The weather info processed for this key, null if there is none or it is too old
+     */
+    WeatherInfo get(String key, long maxAgeMs) {
+        final Entry entry = getEntry(key);
+        if (entry == null || SystemClock.elapsedRealtime() - entry.fetchedAt > maxAgeMs) {
+            return null;
+        }
+        return entry.weatherInfo;
+    }
+
+    /**
+     * @param latitude Latitude the weather was reported for, NaN if unknown
+     * @param longitude Longitude the weather was reported for, NaN if unknown
+     */
+    void put(String key, String units, WeatherInfo weatherInfo, double latitude,
+            double longitude) {
+        putEntry(key, new Entry(key, units, weatherInfo, latitude, longitude));
+    }
+
+    /**
+     * @return The results fetched in the given units less than maxAgeMs ago, within
+     * radiusMeters of the location, nearest first
+     */
+    synchronized List<Neighbour> getNeighbours(Location location, String units,
+            float radiusMeters, long maxAgeMs) {
+        final long now = SystemClock.elapsedRealtime();
+        List<Neighbour> neighbours = new ArrayList<>();
+        float[] results = new float[2];
+        for (Entry entry : getEntries()) {
+            if (!entry.units.equals(units) || now - entry.fetchedAt > maxAgeMs
+                    || Double.isNaN(entry.latitude) || Double.isNaN(entry.longitude)) {
+                continue;
+            }
+            Location.distanceBetween(location.getLatitude(), location.getLongitude(),
+                    entry.latitude, entry.longitude, results);
+            if (results[0] > radiusMeters) continue;
+            int i = 0;
+            while (i < neighbours.size() && neighbours.get(i).distanceMeters <= results[0]) {
+                i++;
+            }
+            neighbours.add(i, new Neighbour(entry.weatherInfo, results[0], results[1]));
+        }
+        return neighbours;
+    }
+
+    @Override
+    protected int sizeOf(String key, Entry entry) {
+        return entry.bytes;
+    }
+
+    @Override
+    public String getName() {
+        return "weather";
+    }
+
+    @Override
+    public int getRefetchCost() {
+        //The current weather and the forecast
+        return REFETCH_COST_MULTIPLE_CALLS;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.utils;
+
+import android.os.SystemClock;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size ring buffer of the latest request events, always on so the history of a request is
+ * still around when a user reports a problem. Recording takes a slot with an atomic increment,
+ * claims it with a compare and set of its sequence and stores a few primitives, no lock and no
+ * allocation. A record whose slot is still being written by a writer that wrapped around is
+ * dropped, as is a record overwritten while being read.
+ */
+public class FlightRecorder {
+
+    public static final int EVENT_SUBMIT = 1;
+    public static final int EVENT_REJECT = 2;
+    public static final int EVENT_CANCEL = 3;
+    public static final int EVENT_START = 4;
+    public static final int EVENT_CACHE_HIT = 5;
+    public static final int EVENT_CACHE_MISS = 6;
+    public static final int EVENT_HTTP = 7;
+    public static final int EVENT_COMPLETE = 8;
+    public static final int EVENT_FAIL = 9;
+
+    //Reasons of EVENT_REJECT
+    public static final int REJECT_TOO_SOON = 1;
+    public static final int REJECT_SHED = 2;
+    public static final int REJECT_OFFLINE = 3;
+    public static final int REJECT_SUPERSEDED = 4;
+
+    //Caches of EVENT_CACHE_HIT and EVENT_CACHE_MISS
+    public static final int CACHE_OFFLINE = 1;
+    public static final int CACHE_ESTIMATE = 2;
+    public static final int CACHE_TILE = 3;
+    public static final int CACHE_FORECAST = 4;
+    public static final int CACHE_SEED = 5;
+    public static final int CACHE_NEGATIVE = 6;
+    public static final int CACHE_SNAPSHOT = 7;
+    public static final int CACHE_PUBLICATION = 8;
+
+    private static final String[] EVENT_NAMES = { "?", "submit", "reject", "cancel", "start",
+            "cache hit", "cache miss", "http", "complete", "fail" };
+
+    //Binary trace layout: magic, version and base time, then one record per event
+    private static final int TRACE_MAGIC = 0x4f574652;
+    private static final int TRACE_VERSION = 2;
+
+    //Must be a power of two
+    private static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+
+    //Fields of a record, each slot takes RECORD_SIZE consecutive longs of the buffer
+    private static final int FIELD_SEQUENCE = 0;
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_REQUEST = 2;
+    private static final int FIELD_EVENT = 3;
+    private static final int FIELD_DURATION = 4;
+    private static final int RECORD_SIZE = 5;
+
+    private static final AtomicLong sNext = new AtomicLong();
+    private static final AtomicLong sNextRequestId = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+    //The sequence of a slot is 2 * index + 1 while record index is being written into it, and
+    //2 * index + 2 once it is written. All the fields are volatile, so a reader seeing the same
+    //even sequence before and after reading the fields read a complete record.
+    private static final AtomicLongArray sRecords = new AtomicLongArray(CAPACITY * RECORD_SIZE);
+
+    //Request the current thread works on, for the events recorded deep in the fetch logic
+    private static final ThreadLocal<Long> sCurrentRequest = new ThreadLocal<>();
+
+    private FlightRecorder() {}
+
+    /**
+     * @return A new ID to record the events of a request under, never 0
+     */
+    public static long newRequestId() {
+        return sNextRequestId.incrementAndGet();
+    }
+
+    public static void setCurrentRequest(long requestId) {
+        sCurrentRequest.set(requestId);
+    }
+
+    public static void clearCurrentRequest() {
+        sCurrentRequest.remove();
+    }
+
+    /**
+     * Records an event of the request the current thread works on, if any
+     */
+    public static void record(int event, int arg, long durationMs) {
+        final Long requestId = sCurrentRequest.get();
+        record(requestId != null ? requestId : 0, event, arg, durationMs);
+    }
+
+    public static void record(long requestId, int event, int arg, long durationMs) {
+        final long index = sNext.getAndIncrement();
+        final int base = (int) (index & MASK) * RECORD_SIZE;
+        final long sequence = sRecords.get(base + FIELD_SEQUENCE);
+        //Only claim a slot holding an older, complete record. Writers are never blocked, so the
+        //record is dropped if the previous writer of the slot is still at it.
+        if ((sequence & 1) != 0 || sequence >= 2 * index + 2
+                || !sRecords.compareAndSet(base + FIELD_SEQUENCE, sequence, 2 * index + 1)) {
+            sDropped.incrementAndGet();
+            return;
+        }
+        sRecords.set(base + FIELD_TIME, SystemClock.elapsedRealtime());
+        sRecords.set(base + FIELD_REQUEST, requestId);
+        sRecords.set(base + FIELD_EVENT, ((long) event << 32) | (arg & 0xffffffffL));
+        sRecords.set(base + FIELD_DURATION, Math.min(durationMs, Integer.MAX_VALUE));
+        sRecords.set(base + FIELD_SEQUENCE, 2 * index + 2);
+    }
+
+    private interface Visitor {
+        void visit(long time, long requestId, int event, int arg, int duration)
+                throws IOException;
+    }
+
+    /**
+     * Visits the records still in the buffer, oldest first
+     * @return The number of records visited
+     */
+    private static int visit(Visitor visitor) throws IOException {
+        final long end = sNext.get();
+        int visited = 0;
+        for (long index = Math.max(0, end - CAPACITY); index < end; index++) {
+            final int base = (int) (index & MASK) * RECORD_SIZE;
+            final long sequence = 2 * index + 2;
+            if (sRecords.get(base + FIELD_SEQUENCE) != sequence) continue;
+            final long time = sRecords.get(base + FIELD_TIME);
+            final long requestId = sRecords.get(base + FIELD_REQUEST);
+            final long eventArg = sRecords.get(base + FIELD_EVENT);
+            final int duration = (int) sRecords.get(base + FIELD_DURATION);
+            if (sRecords.get(base + FIELD_SEQUENCE) != sequence) continue;
+            final int event = (int) (eventArg >>> 32);
+            final int arg = (int) eventArg;
+            visitor.visit(time, requestId, event, arg, duration);
+            visited++;
+        }
+        return visited;
+    }
+
+    public static void dump(final PrintWriter pw) {
+        final long now = SystemClock.elapsedRealtime();
+        pw.println("  flight recorder, " + sNext.get() + " events recorded, " + sDropped.get()
+                + " dropped:");
+        try {
+            visit(new Visitor() {
+                @Override
+                public void visit(long time, long requestId, int event, int arg, int duration) {
+                    pw.println("    -" + (now - time) + "ms #" + requestId
+                            + " " + (event < EVENT_NAMES.length ? EVENT_NAMES[event] : event)
+                            + " " + arg + (duration > 0 ? " " + duration + "ms" : ""));
+                }
+            });
+        } catch (IOException e) {
+            //Not thrown when printing
+        }
+    }
+
+    /**
+     * Writes the records as a compact binary trace: a header followed by the time relative to
+     * the header, request, event, argument and duration of each record, 19 bytes per record
+     */
+    public static void writeTrace(OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(out);
+        final long baseTime = SystemClock.elapsedRealtime();
+        data.writeInt(TRACE_MAGIC);
+        data.writeShort(TRACE_VERSION);
+        data.writeLong(baseTime);
+        visit(new Visitor() {
+            @Override
+            public void visit(long time, long requestId, int event, int arg, int duration)
+                    throws IOException {
+                data.writeInt((int) (baseTime - time));
+                data.writeLong(requestId);
+                data.writeByte(event);
+                data.writeShort(arg);
+                data.writeInt(duration);
+            }
+        });
+        data.flush();
+    }
+}
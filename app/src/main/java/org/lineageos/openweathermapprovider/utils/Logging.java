@@ -18,18 +18,31 @@ package org.lineageos.openweathermapprovider.utils;
 
 import android.util.Log;
 
+/**
+ * Debug and warning logs are compiled out unless {@link #DEBUG} is set. Pass the variable part
+ * of the message as an argument so it's only turned into a String when the log is enabled, and
+ * guard the call with {@link #DEBUG} when computing the argument itself has a cost (e.g. boxing).
+ */
 public class Logging {
-    private static final boolean DEBUG = false;
+    public static final boolean DEBUG = false;
     private static final String TAG = "OpenWeatherMapProvider";
 
     public static final void logd(String log) {
         if (DEBUG) Log.d(TAG, log);
     }
 
+    public static final void logd(String log, Object arg) {
+        if (DEBUG) Log.d(TAG, log + arg);
+    }
+
     public static final void logw(String log) {
         if (DEBUG) Log.w(TAG, log);
     }
 
+    public static final void logw(String log, Object arg) {
+        if (DEBUG) Log.w(TAG, log + arg);
+    }
+
     public static final void loge(String log) {
         //This is an actual error, so it might be important, no check for debug flag
         Log.e(TAG, log);
@@ -0,0 +1,455 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.batch;
+
+import com.google.gson.Gson;
+
+import org.lineageos.openweathermapprovider.openweathermap.ApiKeyPool;
+import org.lineageos.openweathermapprovider.openweathermap.BoxCityResponse;
+import org.lineageos.openweathermapprovider.openweathermap.CurrentWeatherResponse;
+import org.lineageos.openweathermapprovider.openweathermap.OpenWeatherMapInterface;
+import org.lineageos.openweathermapprovider.openweathermap.ResponseMapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * Fetches the current weather of a large set of locations from a JVM, with the end point
+ * interface, response models, response mapping and API key pool of the app.
+ *
+ * <pre>
+ * batch --keys KEY[,KEY...] [--input FILE] [--output FILE] [--units metric|imperial]
+ *       [--concurrency N] [--calls-per-minute N] [--base-url URL]
+ * </pre>
+ *
+ * Every input line is either a city ID or a "lat,lon" pair, blank lines and lines starting with
+ * # are skipped. City IDs are fetched through the group end point, coordinates one by one. The
+ * input is read as the calls complete and every result is written out as a JSON line right
+ * away, in completion order, so the size of the location set doesn't matter. The condition is
+ * the weather contract code the app would report.
+ */
+public class BatchEngine {
+
+    private static final String DEFAULT_BASE_URL = "http://api.openweathermap.org";
+    //Most city IDs the group end point accepts in one call
+    private static final int GROUP_SIZE = 20;
+    private static final int DEFAULT_CONCURRENCY = 8;
+    //Calls rejected with too many requests are tried again, with the next key
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long PROGRESS_INTERVAL_S = 10L;
+
+    /**
+     * One line of output, absent values are left out
+     */
+    private static class Result {
+        final String query;
+        String id;
+        String name;
+        Double lat;
+        Double lon;
+        Double temp;
+        Double humidity;
+        Double windSpeed;
+        Double windDeg;
+        //Weather contract code
+        Integer condition;
+        String icon;
+        String error;
+
+        Result(String query) {
+            this.query = query;
+        }
+    }
+
+    private interface CallFactory<T> {
+        Call<T> create(String apiKey);
+    }
+
+    private final OpenWeatherMapInterface mApi;
+    private final ApiKeyPool mKeyPool;
+    private final String mUnits;
+    private final boolean mMetric;
+    private final int mConcurrency;
+    private final ExecutorService mExecutor;
+    //Bounds the work read ahead of the calls
+    private final Semaphore mInFlight;
+    private final Writer mOutput;
+    private final Gson mGson = new Gson();
+    private final LatencyHistogram mLatencies = new LatencyHistogram();
+    private final AtomicLong mLocations = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mCalls = new AtomicLong();
+    //Tasks that failed unexpectedly, their locations might be missing from the output
+    private final AtomicLong mErrors = new AtomicLong();
+
+    BatchEngine(String baseUrl, List<String> keys, int callsPerMinute, String units,
+            int concurrency, Writer output) {
+        final OkHttpClient httpClient = new OkHttpClient().newBuilder()
+                .connectionPool(new ConnectionPool(concurrency, 5, TimeUnit.MINUTES))
+                .build();
+        mApi = new Retrofit.Builder()
+                .baseUrl(baseUrl)
+                .client(httpClient)
+                .addConverterFactory(GsonConverterFactory.create())
+                .build()
+                .create(OpenWeatherMapInterface.class);
+        mKeyPool = new ApiKeyPool(callsPerMinute);
+        mKeyPool.setKeys(keys);
+        mUnits = units;
+        mMetric = !"imperial".equals(units);
+        mConcurrency = concurrency;
+        mExecutor = Executors.newFixedThreadPool(concurrency);
+        mInFlight = new Semaphore(concurrency * 2);
+        mOutput = output;
+    }
+
+    /**
+     * Fetches the weather of every location of the input, returns once every result has been
+     * written
+     */
+    void run(BufferedReader input) throws IOException, InterruptedException {
+        List<String> group = new ArrayList<>(GROUP_SIZE);
+        String line;
+        while ((line = input.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            final int comma = line.indexOf(',');
+            if (comma < 0) {
+                group.add(line);
+                if (group.size() == GROUP_SIZE) {
+                    submitGroup(group);
+                    group = new ArrayList<>(GROUP_SIZE);
+                }
+                continue;
+            }
+            try {
+                submitLocation(line, Double.parseDouble(line.substring(0, comma).trim()),
+                        Double.parseDouble(line.substring(comma + 1).trim()));
+            } catch (NumberFormatException e) {
+                Result result = new Result(line);
+                result.error = "malformed";
+                write(result);
+            }
+        }
+        if (!group.isEmpty()) submitGroup(group);
+
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        synchronized (mOutput) {
+            mOutput.flush();
+        }
+    }
+
+    private void submit(final Runnable task) throws InterruptedException {
+        mInFlight.acquire();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    //Don't let one task take the worker down silently
+                    mErrors.incrementAndGet();
+                    System.err.println("Task failed: " + e);
+                } finally {
+                    mInFlight.release();
+                }
+            }
+        });
+    }
+
+    private void submitGroup(final List<String> cityIds) throws InterruptedException {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                fetchGroup(cityIds);
+            }
+        });
+    }
+
+    private void submitLocation(final String query, final double lat, final double lon)
+            throws InterruptedException {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                fetchLocation(query, lat, lon);
+            }
+        });
+    }
+
+    private void fetchGroup(final List<String> cityIds) {
+        final String ids = join(cityIds);
+        String error = null;
+        final Map<String, CurrentWeatherResponse> cities = new HashMap<>();
+        try {
+            Response<BoxCityResponse> response = execute(new CallFactory<BoxCityResponse>() {
+                @Override
+                public Call<BoxCityResponse> create(String apiKey) {
+                    return mApi.queryGroup(ids, mUnits, apiKey);
+                }
+            });
+            if (response == null) {
+                error = "no valid key";
+            } else if (response.code() != 200) {
+                error = "http " + response.code();
+            } else {
+                for (CurrentWeatherResponse city : response.body().getCityList()) {
+                    cities.put(city.getCityId(), city);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //Malformed bodies throw from the converter
+            error = e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "interrupted";
+        }
+
+        for (String cityId : cityIds) {
+            final CurrentWeatherResponse city = cities.get(cityId);
+            if (city != null) {
+                write(toResult(cityId, city));
+            } else {
+                Result result = new Result(cityId);
+                result.error = error != null ? error : "not found";
+                write(result);
+            }
+        }
+    }
+
+    private void fetchLocation(String query, final double lat, final double lon) {
+        Result result;
+        try {
+            Response<CurrentWeatherResponse> response = execute(
+                    new CallFactory<CurrentWeatherResponse>() {
+                @Override
+                public Call<CurrentWeatherResponse> create(String apiKey) {
+                    return mApi.queryCurrentWeather(lat, lon, mUnits, apiKey);
+                }
+            });
+            if (response == null) {
+                result = new Result(query);
+                result.error = "no valid key";
+            } else if (response.code() != 200) {
+                result = new Result(query);
+                result.error = "http " + response.code();
+            } else {
+                result = toResult(query, response.body());
+            }
+        } catch (IOException | RuntimeException e) {
+            result = new Result(query);
+            result.error = e.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result = new Result(query);
+            result.error = "interrupted";
+        }
+        write(result);
+    }
+
+    /**
+     * @return The response, null if no key is left to make the call with
+     */
+    private <T> Response<T> execute(CallFactory<T> callFactory)
+            throws IOException, InterruptedException {
+        Response<T> response = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final String apiKey = acquireApiKey();
+            if (apiKey == null) return null;
+            final long start = System.nanoTime();
+            try {
+                response = callFactory.create(apiKey).execute();
+            } catch (IOException | RuntimeException e) {
+                //The call might have reached the server, account the reserved call
+                mKeyPool.onResponse(apiKey, 0);
+                throw e;
+            }
+            mLatencies.record((System.nanoTime() - start) / 1000000L);
+            mCalls.incrementAndGet();
+            mKeyPool.onResponse(apiKey, response.code());
+            if (response.code() == 401) {
+                mKeyPool.onInvalid(apiKey);
+            } else if (response.code() != 429) {
+                mKeyPool.onVerified(apiKey);
+                break;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Blocks until one of the keys has budget left
+     * @return The key to use for the next call, null if every key has been rejected
+     */
+    private String acquireApiKey() throws InterruptedException {
+        while (true) {
+            final String apiKey = mKeyPool.acquireWithinBudget();
+            if (apiKey != null) return apiKey;
+            if (!mKeyPool.hasValidKeys()) return null;
+            Thread.sleep(Math.max(1L, mKeyPool.getRetryDelay()));
+        }
+    }
+
+    private Result toResult(String query, CurrentWeatherResponse city) {
+        Result result = new Result(query);
+        result.id = city.getCityId();
+        result.name = city.getCityName();
+        result.lat = value(city.getLatitude());
+        result.lon = value(city.getLongitude());
+        result.temp = value(ResponseMapper.sanitizeTemperature(city.getTemperature(), mMetric));
+        result.humidity = value(city.getHumidity());
+        result.windSpeed = value(city.getWindSpeed());
+        result.windDeg = value(city.getWindDirection());
+        result.condition = ResponseMapper.mapConditionIconToCode(city.getWeatherIconId(),
+                city.getConditionCode());
+        result.icon = city.getWeatherIconId();
+        return result;
+    }
+
+    //JSON has no NaN
+    private static Double value(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static String join(List<String> values) {
+        StringBuilder builder = new StringBuilder();
+        for (String value : values) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
+    private void write(Result result) {
+        mLocations.incrementAndGet();
+        if (result.error != null) mFailures.incrementAndGet();
+        final String json = mGson.toJson(result);
+        synchronized (mOutput) {
+            try {
+                mOutput.write(json);
+                mOutput.write('\n');
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to write the results", e);
+            }
+        }
+    }
+
+    void printProgress(PrintStream out, long elapsedMs) {
+        final long locations = mLocations.get();
+        out.println(locations + " locations (" + mFailures.get() + " failed), "
+                + mCalls.get() + " calls, " + mErrors.get() + " errors, "
+                + (elapsedMs > 0 ? locations * 1000L / elapsedMs : 0) + " locations/s");
+    }
+
+    void printReport(PrintStream out, long elapsedMs) {
+        printProgress(out, elapsedMs);
+        out.println("elapsed: " + elapsedMs + "ms, concurrency: " + mConcurrency
+                + ", calls/s: " + (elapsedMs > 0 ? mCalls.get() * 1000f / elapsedMs : 0));
+        out.println("call latency: p50 " + mLatencies.getPercentile(50) + "ms, p90 "
+                + mLatencies.getPercentile(90) + "ms, p99 " + mLatencies.getPercentile(99)
+                + "ms, max " + mLatencies.getMax() + "ms");
+        final PrintWriter pw = new PrintWriter(out);
+        mKeyPool.dump(pw);
+        pw.flush();
+    }
+
+    private static void usage() {
+        System.err.println("usage: batch --keys KEY[,KEY...] [--input FILE] [--output FILE]"
+                + " [--units metric|imperial] [--concurrency N] [--calls-per-minute N]"
+                + " [--base-url URL]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) usage();
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (args.length % 2 != 0 || !options.containsKey("keys")) usage();
+
+        final List<String> keys = ApiKeyPool.parseKeys(options.get("keys"));
+        final String input = options.get("input");
+        final String output = options.get("output");
+        final int concurrency;
+        final int callsPerMinute;
+        try {
+            concurrency = options.containsKey("concurrency")
+                    ? Integer.parseInt(options.get("concurrency")) : DEFAULT_CONCURRENCY;
+            callsPerMinute = options.containsKey("calls-per-minute")
+                    ? Integer.parseInt(options.get("calls-per-minute"))
+                    : ApiKeyPool.DEFAULT_CALLS_PER_MINUTE;
+        } catch (NumberFormatException e) {
+            usage();
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                input == null || input.equals("-") ? System.in : new FileInputStream(input),
+                StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                output == null || output.equals("-") ? System.out : new FileOutputStream(output),
+                StandardCharsets.UTF_8))) {
+            final BatchEngine engine = new BatchEngine(
+                    options.containsKey("base-url") ? options.get("base-url") : DEFAULT_BASE_URL,
+                    keys, callsPerMinute,
+                    options.containsKey("units") ? options.get("units") : "metric",
+                    concurrency, writer);
+
+            final long start = System.nanoTime();
+            final ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+            progress.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    engine.printProgress(System.err, (System.nanoTime() - start) / 1000000L);
+                }
+            }, PROGRESS_INTERVAL_S, PROGRESS_INTERVAL_S, TimeUnit.SECONDS);
+            try {
+                engine.run(reader);
+            } finally {
+                progress.shutdownNow();
+            }
+            engine.printReport(System.err, (System.nanoTime() - start) / 1000000L);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.openweathermapprovider.batch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies in logarithmic buckets, 10% wide, so the percentiles of any number of calls can be
+ * reported in constant memory.
+ */
+class LatencyHistogram {
+
+    private static final double BUCKET_GROWTH = 1.1d;
+    //Covers up to a couple of days
+    private static final int BUCKETS = 200;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long latencyMs) {
+        final int bucket = (int) (Math.log(Math.max(0L, latencyMs) + 1L)
+                / Math.log(BUCKET_GROWTH));
+        mCounts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        mCount.incrementAndGet();
+        long max;
+        do {
+            max = mMax.get();
+        } while (latencyMs > max && !mMax.compareAndSet(max, latencyMs));
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return The upper bound of the bucket containing the percentile, -1 if nothing was recorded
+     */
+    long getPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) return -1;
+        final long rank = (long) Math.ceil(count * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(mMax.get(),
+                        (long) Math.ceil(Math.pow(BUCKET_GROWTH, i + 1)) - 1L);
+            }
+        }
+        return mMax.get();
+    }
+}